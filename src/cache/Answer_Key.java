@@ -0,0 +1,81 @@
+package cache;
+
+import packet.DNS_Name;
+
+/********************************************************************
+ * Answer_Key.java
+ *
+ * Key an answer is stored under in the cache: the canonical name,
+ * type and class of the question it answers. Answers of different
+ * types for the same name are kept apart, so an MX answer can never
+ * be sent back for an A question.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ * @version Oct 7, 2014
+ *******************************************************************/
+public final class Answer_Key {
+
+	/** Type of the key an NXDOMAIN is stored under, since it answers
+	 * questions of every type for the name. */
+	public static final int ALL_TYPES = -1;
+
+	/** Name of the question. */
+	private final DNS_Name name;
+
+	/** QTYPE of the question. */
+	private final int type;
+
+	/** QCLASS of the question. */
+	private final int dnsClass;
+
+	/****************************************************************
+	 * Constructor for Answer_Key.
+	 *
+	 * @param name name of the question.
+	 * @param type QTYPE of the question, or ALL_TYPES.
+	 * @param dnsClass QCLASS of the question.
+	 ***************************************************************/
+	public Answer_Key(DNS_Name name, int type, int dnsClass) {
+		this.name = name;
+		this.type = type;
+		this.dnsClass = dnsClass;
+	}
+
+	/****************************************************************
+	 * @return name of the question.
+	 ***************************************************************/
+	public DNS_Name getName() {
+		return name;
+	}
+
+	/****************************************************************
+	 * @return QTYPE of the question, or ALL_TYPES.
+	 ***************************************************************/
+	public int getType() {
+		return type;
+	}
+
+	/****************************************************************
+	 * @return QCLASS of the question.
+	 ***************************************************************/
+	public int getDNSClass() {
+		return dnsClass;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof Answer_Key)) return false;
+
+		Answer_Key other = (Answer_Key) o;
+		return type == other.type && dnsClass == other.dnsClass &&
+				name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode() {
+		return (name.hashCode() * 31 + type) * 31 + dnsClass;
+	}
+}
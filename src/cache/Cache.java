@@ -1,61 +1,216 @@
 package cache;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 
 import packet.DNS_Answer;
+import packet.DNS_Header;
+import packet.DNS_Name;
 import packet.DNS_Packet;
+import packet.DNS_Packet_Builder;
+import packet.DNS_Question;
+import packet.Wire_Format;
 
 /********************************************************************
  * Cache.java
  *
+ * Shared by all of the resolver's workers. The cache's lock guards
+ * every index, the expiry queue, the eviction policy and the counts,
+ * so entries can be added and looked up from many threads at once.
+ * Answers are encoded before the lock is taken, snapshots are written
+ * from a copy taken under it and read before it is taken, so only
+ * the changes to the indexes wait on other threads. Entries are
+ * indexed by their canonical name so lookups take the same time no
+ * matter how large the cache grows.
+ * Name servers are kept in a tree of zones by name, so the closest
+ * known zone cut above a name is found in one walk down the tree.
+ * Expired entries are found through a queue ordered by time to die
+ * and removed a few at a time as new entries are added. The cache
+ * is bounded by number of entries and by estimated bytes; when it is
+ * over either limit, entries are evicted by a segmented LRU policy.
+ * Each link of a CNAME chain is stored as its own answer, as is the
+ * RRset at its end, and chains are put back together on lookup, so
+ * names sharing links share entries and each link keeps its own TTL.
+ *
  * @author Jack O'Brien
  * @author Megan Maher
  * @author Tyler McCarthy
  * @version Oct 7, 2014
  *******************************************************************/
 public class Cache {
-	private ArrayList<Cache_Entry> cache;
-	private ArrayList<Cache_Entry> answers;
+	
+	/** Name servers and their addresses, in a tree of the zones
+	 * they serve. */
+	private Zone_Trie<ArrayList<Cache_Entry>> cache;
+	
+	/** Answer packets, indexed by the question they answer. */
+	private HashMap<Answer_Key, Cache_Entry> answers;
+	
+	/** Hits and misses of answer lookups, indexed by QTYPE. */
+	private TreeMap<Integer, long[]> lookups;
+	
+	/** Every entry in the cache, soonest to die first. */
+	private PriorityQueue<Cache_Entry> expiry;
+	
+	/** Most expired entries removed each time an entry is added. */
+	private final int EXPIRE_BATCH = 16;
+	
+	/** Longest a negative answer is cached, as RFC 2308 suggests. */
+	private final int MAX_NEGATIVE_TTL = 3 * 60 * 60;
+	
+	/** Share of an answer's lifetime, at the end, in which a lookup
+	 * starts a refresh of the answer. */
+	private final double PREFETCH_SHARE = 0.1;
+	
+	/** Lookups an answer must have had before it is refreshed. */
+	private final int PREFETCH_HITS = 2;
+	
+	/** Default time in seconds answers are kept after they expire,
+	 * in case they have to be served stale. */
+	public static final long DEFAULT_STALE_WINDOW = 24 * 60 * 60;
+	
+	/** Most links of a CNAME chain put together from the cache. */
+	private final int MAX_CHAIN = 8;
+
+	/** TTL given to records in a stale answer, as RFC 8767 suggests. */
+	private final int STALE_TTL = 30;
+	
+	/** First bytes of a snapshot file, "CATC". */
+	private static final int SNAPSHOT_MAGIC = 0x43415443;
+	
+	/** Version of the snapshot format. */
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	/** Marks a name server entry in a snapshot. */
+	private static final byte SERVER_RECORD = 0;
+	
+	/** Marks an answer entry in a snapshot. */
+	private static final byte ANSWER_RECORD = 1;
+	
+	/** Default most entries the cache may hold. */
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	
+	/** Default most estimated bytes the cache may hold. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	
+	/** Share of the entries which may be in the protected segment. */
+	private final double PROTECTED_SHARE = 0.8;
+	
+	/** Most entries the cache may hold. */
+	private int maxEntries;
+	
+	/** Most estimated bytes the cache may hold. */
+	private long maxBytes;
+	
+	/** Chooses which entries to evict when over the limits. */
+	private Segmented_LRU policy;
+	
+	/** Time in seconds answers are kept after they expire. */
+	private long staleWindow;
+	
+	/** Number of entries evicted to stay within the limits. */
+	private long evictions;
+	
+	/** Number of stale answers served. */
+	private long staleServed;
 	
 	/****************************************************************
-	 * Constructor for Cache
+	 * Constructor for Cache with the default limits.
 	 ***************************************************************/
 	public Cache() {
-		cache = new ArrayList<Cache_Entry>();
-		answers = new ArrayList<Cache_Entry>();
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_STALE_WINDOW);
 	}
 	
 	/****************************************************************
-	 * Adds a packet to the cache.
+	 * Constructor for Cache
 	 * 
+	 * @param maxEntries most entries the cache may hold.
+	 * @param maxBytes most estimated bytes the cache may hold.
+	 * @param staleWindow time in seconds answers are kept after they
+	 * expire, or 0 to never serve stale answers.
+	 ***************************************************************/
+	public Cache(int maxEntries, long maxBytes, long staleWindow) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.staleWindow = staleWindow;
+		policy = new Segmented_LRU((int) (maxEntries * PROTECTED_SHARE));
+		evictions = 0;
+		
+		cache = new Zone_Trie<ArrayList<Cache_Entry>>();
+		answers = new HashMap<Answer_Key, Cache_Entry>();
+		lookups = new TreeMap<Integer, long[]>();
+		
+		expiry = new PriorityQueue<Cache_Entry>(11, 
+				new Comparator<Cache_Entry>() {
+			public int compare(Cache_Entry a, Cache_Entry b) {
+				return Long.compare(removeAt(a), removeAt(b));
+			}
+		});
+	}
+	
+	/****************************************************************
+	 * Adds a referral to the cache: the names of the name servers of
+	 * the zone it delegates to, and the addresses of any of them
+	 * given as glue. Only the NS records given are stored, so the
+	 * caller decides which of the packet's may be trusted.
+	 *
 	 * @param packet packet to add to the cache.
+	 * @param nsTypes the packet's NS records which may be trusted.
 	 * @param time time in seconds of when the packet was added.
 	 ***************************************************************/
-	public void addPacket(DNS_Packet packet, long time) {
+	public synchronized void addPacket(DNS_Packet packet,
+			ArrayList<DNS_Answer> nsTypes, long time) {
 		ArrayList<DNS_Answer> aTypes = packet.getAnswers(DNS_Answer.A_TYPE);
-		ArrayList<DNS_Answer> nsTypes = packet.getAnswers(DNS_Answer.NS_TYPE);
-		
-		if (aTypes.isEmpty() || nsTypes.isEmpty()) return;
+
+		for (DNS_Answer ns : nsTypes) {
+			DNS_Name server = DNS_Name.read(ns.getBytes(),
+					ns.getRDataIndex());
+			putServer(ns.getOwner(), ns.getRDATA(), server, null,
+					ns.getTTL(), time);
+		}
+
+		if (aTypes.isEmpty() || nsTypes.isEmpty()) {
+			expire(time, EXPIRE_BATCH);
+			evict();
+			return;
+		}
 		
 		for (DNS_Answer a : aTypes) {
 			String aName = a.getName();
 			String nsName = "";
+			DNS_Name zone = null;
 			
 			for (DNS_Answer ns : nsTypes) {
 				String nsRDATA = ns.getRDATA();
 				
 				if (aName.equals(nsRDATA)) {
 					nsName = ns.getName();
+					zone = ns.getOwner();
 					break;
 				}
 			}
 			
-			if (nsName.isEmpty()) continue;
+			if (zone == null) continue;
 			
-			int TTL = a.getTTL();
-			long TTD = (time + TTL);
 			InetAddress IP = null;
 			
 			try {
@@ -63,142 +218,1018 @@ public class Cache {
 			} catch (UnknownHostException e) {
 				continue;
 			}
-						
-			cache.add(new Cache_Entry(TTL, TTD, IP, nsName));
+			
+			putServer(zone, nsName, null, IP, a.getTTL(), time);
 		}
+		
+		expire(time, EXPIRE_BATCH);
+		evict();
 	}
 	
 	/****************************************************************
-	 * Adds a packet to the cache as an answer.
+	 * Adds the address of one name server for a zone, such as one 
+	 * found by resolving the server's name when a referral had no 
+	 * glue.
 	 * 
+	 * @param zone the zone the server serves.
+	 * @param nsName name of the server.
+	 * @param IP address of the server.
+	 * @param TTL time in seconds the address may be cached.
+	 * @param time time in seconds of when the address was found.
+	 ***************************************************************/
+	public synchronized void addServer(DNS_Name zone, String nsName, 
+			InetAddress IP, int TTL, long time) {
+		putServer(zone, nsName, null, IP, TTL, time);
+		
+		expire(time, EXPIRE_BATCH);
+		evict();
+	}
+	
+	/****************************************************************
+	 * Stores the address of a name server for a zone, replacing any
+	 * older entry for the same address. With no address, stores the
+	 * name of one of the zone's name servers, replacing any older
+	 * entry for the same name.
+	 ***************************************************************/
+	private void putServer(DNS_Name zone, String nsName, DNS_Name server,
+			InetAddress IP, int TTL, long time) {
+		ArrayList<Cache_Entry> servers = cache.get(zone);
+		
+		if (servers == null) {
+			servers = new ArrayList<Cache_Entry>();
+			cache.put(zone, servers);
+		}
+		
+		/* Replaces any older entry for the same server. */
+		Iterator<Cache_Entry> it = servers.iterator();
+		while (it.hasNext()) {
+			Cache_Entry old = it.next();
+			
+			boolean same = (IP == null) ?
+					old.getIP() == null && server.equals(old.getServer()) :
+					IP.equals(old.getIP());
+
+			if (same) {
+				it.remove();
+				policy.remove(old);
+			}
+		}
+		
+		Cache_Entry entry = new Cache_Entry(TTL, time + TTL, IP, nsName);
+		entry.setKey(zone);
+		entry.setServer(server);
+		servers.add(entry);
+		track(entry);
+	}
+	
+	/****************************************************************
+	 * Adds a packet to the cache as an answer. The packet is stored
+	 * encoded, as it will be sent, along with where its TTLs are.
+	 * If the answer is a CNAME chain, each link is stored under its
+	 * own name and type CNAME instead, and the records at the end of
+	 * the chain, if there are any, under the name they belong to.
+	 *
 	 * @param packet packet to add to the answers cache.
 	 * @param time time in seconds of when the packet was added.
 	 ***************************************************************/
 	public void addAnswer(DNS_Packet packet, long time) {
+		DNS_Question question = packet.getQuestions().get(0);
+		ArrayList<DNS_Answer> answers = packet.getAnswers();
+		DNS_Name name = question.getQName();
+		int type = question.getQTYPE();
+		int links = 0;
+
+		while (type != DNS_Answer.CNAME_TYPE && links < MAX_CHAIN) {
+			DNS_Answer link = findRecord(answers, name,
+					DNS_Answer.CNAME_TYPE);
+
+			if (link == null) break;
+
+			ArrayList<DNS_Answer> rrset = new ArrayList<DNS_Answer>();
+			rrset.add(link);
+			storeRecords(packet, name, DNS_Answer.CNAME_TYPE,
+					question.getQCLASS(), rrset, time);
+
+			name = DNS_Name.read(link.getBytes(), link.getRDataIndex());
+			links++;
+		}
+
+		if (links == 0) {
+			storePacket(packet, time);
+			return;
+		}
+
+		ArrayList<DNS_Answer> rrset = new ArrayList<DNS_Answer>();
+
+		for (DNS_Answer answ : answers) {
+			if (answ.getType() == type && answ.getOwner().equals(name)) {
+				rrset.add(answ);
+			}
+		}
+
+		if (!rrset.isEmpty()) {
+			storeRecords(packet, name, type, question.getQCLASS(), rrset,
+					time);
+		}
+	}
+
+	/****************************************************************
+	 * @return the first record of the given type and owner, or null.
+	 ***************************************************************/
+	private static DNS_Answer findRecord(ArrayList<DNS_Answer> answers,
+			DNS_Name owner, int type) {
+
+		for (DNS_Answer answ : answers) {
+			if (answ.getType() == type && answ.getOwner().equals(owner)) {
+				return answ;
+			}
+		}
+
+		return null;
+	}
+
+	/****************************************************************
+	 * Stores some of a packet's answers as the answer to a question
+	 * of their own. The header flags are kept from the packet.
+	 *
+	 * @param packet packet the records came from.
+	 * @param name name of the question they answer.
+	 * @param type QTYPE of the question they answer.
+	 * @param dnsClass QCLASS of the question they answer.
+	 * @param rrset the records.
+	 * @param time time in seconds of when they were added.
+	 ***************************************************************/
+	private void storeRecords(DNS_Packet packet, DNS_Name name, int type,
+			int dnsClass, ArrayList<DNS_Answer> rrset, long time) {
+
+		DNS_Packet_Builder builder = new DNS_Packet_Builder();
+		builder.writeHeader(packet.getBytes());
+		builder.writeQuestion(name, type, dnsClass);
+
+		int[] ttlIndexes = new int[rrset.size()];
+		int TTL = Integer.MAX_VALUE;
+
+		for (int i = 0; i < rrset.size(); i++) {
+			DNS_Answer answ = rrset.get(i);
+			ttlIndexes[i] = builder.writeRecord(DNS_Packet_Builder.ANSWER,
+					answ);
+			TTL = Math.min(TTL, answ.getTTL());
+		}
+
+		Cache_Entry entry = new Cache_Entry(TTL, time + TTL,
+				name.toString(), builder.toBytes(), ttlIndexes, time);
+		entry.setAnswerKey(new Answer_Key(name, type, dnsClass));
+
+		store(entry, time);
+	}
+
+	/****************************************************************
+	 * Stores a whole packet as the answer to its question. It is kept
+	 * for the least TTL of its answer records. A packet with none is
+	 * stored as a negative answer.
+	 *
+	 * @param packet packet to add to the answers cache.
+	 * @param time time in seconds of when the packet was added.
+	 ***************************************************************/
+	private void storePacket(DNS_Packet packet, long time) {
 		ArrayList<DNS_Answer> responses = packet.getResponses();
 		int numAnswers = packet.getHeader().getANCOUNT();
 		
-		long TTD = Long.MAX_VALUE;
-		int TTL = 0;
+		if (numAnswers == 0) {
+			storeNegative(packet, time);
+			return;
+		}
+		
+		int TTL = Integer.MAX_VALUE;
 		
 		for (int i = 0; i < numAnswers; i++) {
-			DNS_Answer answ = responses.get(i);
-			
-			TTL = answ.getTTL();
-			long currentTTD = (time + TTL);	
-			
-			if (currentTTD < TTD) {
-				TTD = currentTTD;
+			TTL = Math.min(TTL, responses.get(i).getTTL());
+		}
+		
+		if (TTL <= 0) return;
+		
+		DNS_Question question = packet.getQuestions().get(0);
+		
+		DNS_Packet_Builder builder = new DNS_Packet_Builder();
+		int[] ttlIndexes = builder.writePacket(packet);
+		
+		Cache_Entry entry = new Cache_Entry(TTL, time + TTL, 
+				question.getName(), builder.toBytes(), ttlIndexes, time);
+		entry.setAnswerKey(new Answer_Key(question.getQName(), 
+				question.getQTYPE(), question.getQCLASS()));
+		
+		store(entry, time);
+	}
+	
+	/****************************************************************
+	 * Adds a negative answer (NXDOMAIN or NODATA) to the answers 
+	 * cache, following RFC 2308. It is kept for the lesser of the 
+	 * TTL and MINIMUM field of the SOA record in the authority 
+	 * section; answers without an SOA record are not cached. An 
+	 * NXDOMAIN answers questions of every type for the name, while
+	 * a NODATA only answers questions of the type asked.
+	 * 
+	 * @param packet the negative answer.
+	 * @param time time in seconds of when the packet was added.
+	 ***************************************************************/
+	public void addNegative(DNS_Packet packet, long time) {
+		storeNegative(packet, time);
+	}
+	
+	/****************************************************************
+	 * Stores a negative answer, as addNegative describes.
+	 ***************************************************************/
+	private void storeNegative(DNS_Packet packet, long time) {
+		DNS_Answer soa = packet.getAuthoritySOA();
+		
+		if (soa == null || packet.getQuestions().isEmpty()) return;
+		
+		int TTL = Math.min(soa.getTTL(), soa.getMinimum());
+		TTL = Math.min(TTL, MAX_NEGATIVE_TTL);
+		
+		if (TTL <= 0) return;
+		
+		DNS_Question question = packet.getQuestions().get(0);
+		int type = question.getQTYPE();
+		
+		if (packet.getHeader().getRCODE() == DNS_Header.NAME_ERROR) {
+			type = Answer_Key.ALL_TYPES;
+		}
+		
+		DNS_Packet_Builder builder = new DNS_Packet_Builder();
+		int[] ttlIndexes = builder.writePacket(packet);
+		byte[] wire = builder.toBytes();
+		
+		/* No record in the reply may outlive the negative TTL. */
+		for (int index : ttlIndexes) {
+			if (Wire_Format.readInt(wire, index) > TTL) {
+				Wire_Format.writeInt(wire, index, TTL);
 			}
-		} 
+		}
 		
-		String name = responses.get(0).getName();
+		Cache_Entry entry = new Cache_Entry(TTL, time + TTL, 
+				question.getName(), wire, ttlIndexes, time);
+		entry.setAnswerKey(new Answer_Key(question.getQName(), type, 
+				question.getQCLASS()));
 		
-		answers.add(new Cache_Entry(TTL, TTD, name, packet));
+		store(entry, time);
 	}
 	
 	/****************************************************************
-	 * Returns a list of IP addressed found in the cache to be 
-	 * associated with the given name
+	 * Stores an answer, replacing any older answer to the question.
 	 * 
+	 * @param entry the answer to store.
+	 * @param time current time in seconds.
+	 ***************************************************************/
+	private synchronized void store(Cache_Entry entry, long time) {
+		Cache_Entry old = answers.put(entry.getAnswerKey(), entry);
+		if (old != null) policy.remove(old);
+		
+		track(entry);
+		
+		expire(time, EXPIRE_BATCH);
+		evict();
+	}
+	
+	/****************************************************************
+	 * Finds the closest zone cut above a name whose servers can be
+	 * reached: one with the address of a name server, or failing
+	 * that, one with name servers outside of the zone which can be
+	 * looked up. Every zone above the name is found in a single walk
+	 * down the tree of zones; expired servers are dropped on the way.
+	 *
 	 * @param name domain name to be searched in the cache
 	 * @param time current time in seconds.
-	 * @return list of IP addressed found in the cache to be 
-	 * associated with the given name.
+	 * @return the closest usable zone cut, or null if there is none
+	 * and the query must start at the root.
 	 ***************************************************************/
-	public ArrayList<InetAddress> findName(String name, long time) {
+	public synchronized Zone_Cut findCut(DNS_Name name, long time) {
+		for (ArrayList<Cache_Entry> servers : cache.findPath(name)) {
+			DNS_Name zone = servers.get(0).getKey();
+			ArrayList<InetAddress> ipArr = new ArrayList<InetAddress>();
+			ArrayList<DNS_Name> names = new ArrayList<DNS_Name>();
+
+			Iterator<Cache_Entry> it = servers.iterator();
+
+			while (it.hasNext()) {
+				Cache_Entry entry = it.next();
+
+				if (entry.getTTD() <= time) {
+					it.remove();
+					policy.remove(entry);
+					continue;
+				}
+
+				policy.touch(entry);
+
+				if (entry.getIP() != null) {
+					ipArr.add(entry.getIP());
+					continue;
+				}
+
+				/* A server inside the zone cannot be looked up
+				 * without the zone's own servers. */
+				DNS_Name ns = entry.getServer();
+
+				if (!ns.isWithin(zone)) {
+					names.add(ns);
+				}
+			}
+
+			if (servers.isEmpty()) {
+				cache.remove(zone);
+			}
+
+			if (!ipArr.isEmpty() || !names.isEmpty()) {
+				return new Zone_Cut(zone, ipArr, names);
+			}
+		}
+
+		return null;
+	}
+	
+	/****************************************************************
+	 * Looks up the answer to the given question and returns it ready
+	 * to send: a copy of the stored bytes with the query's ID written 
+	 * in and every TTL lowered by the time it has been cached. An 
+	 * NXDOMAIN for the name answers a question of any type.
+	 * 
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @return bytes of the reply, or null if there is no answer.
+	 ***************************************************************/
+	public synchronized byte[] findAnswer(DNS_Name name, int type, 
+			int dnsClass, byte[] query, long time) {
+		
+		Cache_Entry entry = findLive(new Answer_Key(name, type, dnsClass), 
+				time);
 		
-		ArrayList<InetAddress> ipArr = new ArrayList<InetAddress>();
+		if (entry == null) {
+			entry = findLive(new Answer_Key(name, Answer_Key.ALL_TYPES,
+					dnsClass), time);
+		}
+
+		long[] counts = lookups.get(type);
+
+		if (counts == null) {
+			counts = new long[2];
+			lookups.put(type, counts);
+		}
+
+		if (entry == null) {
+			byte[] chain = assemble(name, type, dnsClass, query, time,
+					false, false);
+			counts[(chain == null) ? 1 : 0]++;
+			return chain;
+		}
 
-		checkForExpired(time);
+		counts[0]++;
+		entry.hit();
+		policy.touch(entry);
+
+		return entry.toReply(query, time);
+	}
+
+	/****************************************************************
+	 * Looks up the CNAME chain starting at the given name as far as
+	 * it is in the cache, for a question whose answer is not. The
+	 * rest of the chain can then be resolved from where it ends.
+	 *
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @return bytes of a reply holding only the links of the chain,
+	 * or null if there is no CNAME for the name.
+	 ***************************************************************/
+	public synchronized byte[] findChain(DNS_Name name, int type,
+			int dnsClass, byte[] query, long time) {
+
+		return assemble(name, type, dnsClass, query, time, true, false);
+	}
+
+	/****************************************************************
+	 * Puts a CNAME chain back together from the links stored for it
+	 * and the answer stored for the name it ends at. The reply has
+	 * the RCODE and authority section of the answer at the end, so a
+	 * chain ending at a name which does not exist is an NXDOMAIN.
+	 *
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @param partial true to return the links alone, without looking
+	 * for an answer at the end.
+	 * @param stale true if expired entries may be used.
+	 * @return bytes of the reply, or null if there is no chain or
+	 * partial is false and the end has no answer.
+	 ***************************************************************/
+	private byte[] assemble(DNS_Name name, int type, int dnsClass,
+			byte[] query, long time, boolean partial, boolean stale) {
+
+		if (type == DNS_Answer.CNAME_TYPE) return null;
+
+		ArrayList<Cache_Entry> links = new ArrayList<Cache_Entry>();
+		Cache_Entry end = null;
+		DNS_Name target = name;
+
+		while (end == null && links.size() < MAX_CHAIN) {
+			Cache_Entry link = lookup(new Answer_Key(target,
+					DNS_Answer.CNAME_TYPE, dnsClass), time, stale);
+
+			if (link == null) break;
+
+			links.add(link);
+			target = DNS_Name.read(link.getWire(),
+					link.getTTLIndexes()[0] + 6);
+
+			if (partial) continue;
+
+			end = lookup(new Answer_Key(target, type, dnsClass), time,
+					stale);
+
+			if (end == null) {
+				end = lookup(new Answer_Key(target, Answer_Key.ALL_TYPES,
+						dnsClass), time, stale);
+			}
+		}
+
+		if (links.isEmpty() || (end == null && !partial)) return null;
+
+		/* The ID is the query's; the flags and RCODE are those of the
+		 * last part of the chain. */
+		Cache_Entry last = (end == null) ? links.get(links.size() - 1) : end;
+		byte[] header = {query[0], query[1], last.getWire()[2],
+				last.getWire()[3]};
+
+		DNS_Packet_Builder builder = new DNS_Packet_Builder();
+		builder.writeHeader(header);
+		builder.writeQuestion(name, type, dnsClass);
+
+		for (Cache_Entry link : links) {
+			for (DNS_Answer answ : reply(link, query, time).getAnswers()) {
+				builder.writeRecord(DNS_Packet_Builder.ANSWER, answ);
+			}
+		}
+
+		if (end != null) {
+			DNS_Packet part = reply(end, query, time);
+			ArrayList<DNS_Answer> responses = part.getResponses();
+			int numAnswers = part.getHeader().getANCOUNT();
+			int numAuthority = part.getHeader().getNSCOUNT();
+
+			for (int i = 0; i < numAnswers + numAuthority; i++) {
+				int section = (i < numAnswers) ?
+						DNS_Packet_Builder.ANSWER : DNS_Packet_Builder.AUTHORITY;
+				builder.writeRecord(section, responses.get(i));
+			}
+		}
+
+		byte[] bytes = builder.toBytes();
+		DNS_Packet.echoQuestion(query, bytes);
+		return bytes;
+	}
+
+	/****************************************************************
+	 * Returns the answer stored under the key if it has not expired
+	 * or, when stale answers may be used, if its stale window has
+	 * not passed.
+	 *
+	 * @param key key of the answer.
+	 * @param time current time in seconds.
+	 * @param stale true if an expired answer may be returned.
+	 * @return the answer, or null if there is no usable answer.
+	 ***************************************************************/
+	private Cache_Entry lookup(Answer_Key key, long time, boolean stale) {
+		if (!stale) return findLive(key, time);
+
+		Cache_Entry entry = answers.get(key);
+
+		if (entry == null || removeAt(entry) <= time) return null;
+
+		return entry;
+	}
+
+	/****************************************************************
+	 * Marks an answer as used and returns it as a packet, with its
+	 * TTLs lowered, or set to STALE_TTL if it has expired.
+	 *
+	 * @param entry the answer.
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @return the answer as a packet.
+	 ***************************************************************/
+	private DNS_Packet reply(Cache_Entry entry, byte[] query, long time) {
+		entry.hit();
+		policy.touch(entry);
+
+		byte[] bytes;
+
+		if (entry.getTTD() > time) {
+			bytes = entry.toReply(query, time);
+		} else {
+			staleServed++;
+			bytes = entry.toStaleReply(query, STALE_TTL);
+		}
+
+		return new DNS_Packet(bytes, bytes.length);
+	}
+	
+	/****************************************************************
+	 * Checks if the answer to the given question should be refreshed
+	 * before it expires: it is in the last part of its lifetime, has
+	 * been used more than once, and no refresh has been started for
+	 * it yet. If so, the answer is marked so that it is only claimed
+	 * once. The refreshed answer replaces it when it is added.
+	 * 
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @param time current time in seconds.
+	 * @return true if the caller should refresh the answer.
+	 ***************************************************************/
+	public synchronized boolean claimPrefetch(DNS_Name name, int type, 
+			int dnsClass, long time) {
 		
-		for (Cache_Entry entry : cache) {
-			if (entry.getName().equals(name)) {
-				
-				ipArr.add(entry.getIP());
+		Cache_Entry entry = answers.get(new Answer_Key(name, type, dnsClass));
+		
+		if (entry == null || entry.isPrefetching() || 
+				entry.getHits() < PREFETCH_HITS) {
+			return false;
+		}
+		
+		long lifetime = entry.getTTD() - entry.getStored();
+		long window = Math.max(1, (long) (lifetime * PREFETCH_SHARE));
+		long left = entry.getTTD() - time;
+		
+		if (left <= 0 || left > window) return false;
+		
+		entry.setPrefetching();
+		return true;
+	}
+	
+	/****************************************************************
+	 * Ends a refresh claimed with claimPrefetch. If the refresh did
+	 * not replace the answer, for instance because it failed or timed
+	 * out, the answer may be claimed for a refresh again. A refreshed
+	 * answer is a new entry which has never been claimed, so nothing
+	 * changes for it.
+	 * 
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 ***************************************************************/
+	public synchronized void releasePrefetch(DNS_Name name, int type, 
+			int dnsClass) {
+		
+		Cache_Entry entry = answers.get(new Answer_Key(name, type, dnsClass));
+		
+		if (entry != null) {
+			entry.clearPrefetching();
+		}
+	}
+	
+	/****************************************************************
+	 * Looks up an answer to the given question which may have 
+	 * expired, for use when the question cannot be resolved in time.
+	 * An expired answer is given a short TTL, as RFC 8767 describes;
+	 * an answer which has not expired is returned as usual.
+	 * 
+	 * @param name name of the question.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @return bytes of the reply, or null if there is no answer.
+	 ***************************************************************/
+	public synchronized byte[] findStale(DNS_Name name, int type, 
+			int dnsClass, byte[] query, long time) {
+		
+		Cache_Entry entry = answers.get(new Answer_Key(name, type, dnsClass));
+		
+		if (entry == null) {
+			entry = answers.get(new Answer_Key(name, Answer_Key.ALL_TYPES, 
+					dnsClass));
+		}
+		
+		if (entry == null) {
+			return assemble(name, type, dnsClass, query, time, false,
+					true);
+		}
+
+		if (removeAt(entry) <= time) {
+			return null;
+		}
+
+		if (entry.getTTD() > time) {
+			return entry.toReply(query, time);
+		}
+		
+		staleServed++;
+		return entry.toStaleReply(query, STALE_TTL);
+	}
+	
+	/****************************************************************
+	 * Returns the answer stored under the key if it has not expired.
+	 * Expired answers are kept until their stale window has passed.
+	 * 
+	 * @param key key of the answer.
+	 * @param time current time in seconds.
+	 * @return the answer, or null if there is no live answer.
+	 ***************************************************************/
+	private Cache_Entry findLive(Answer_Key key, long time) {
+		Cache_Entry entry = answers.get(key);
+		
+		if (entry == null || entry.getTTD() > time) {
+			return entry;
+		}
+		
+		if (removeAt(entry) <= time) {
+			remove(entry);
+		}
+		
+		return null;
+	}
+	
+	/****************************************************************
+	 * Writes every entry in the cache to a snapshot file. The file is
+	 * written beside the old one and then moved over it, so a crash
+	 * while saving never leaves a half written snapshot. Entries are
+	 * copied under the lock and written outside it, so lookups are
+	 * not held up by the disk.
+	 * 
+	 * @param path path of the snapshot file.
+	 * @throws IOException if the file cannot be written.
+	 ***************************************************************/
+	public void save(String path) throws IOException {
+		ArrayList<Cache_Entry> entries = new ArrayList<Cache_Entry>();
+		
+		synchronized (this) {
+			for (ArrayList<Cache_Entry> servers : cache.values()) {
+				entries.addAll(servers);
 			}
+			
+			entries.addAll(answers.values());
 		}
 		
-		if (ipArr.isEmpty()) {
-			String[] strArr = name.split("\\.");
+		Path target = Paths.get(path);
+		Path temp = Paths.get(path + ".tmp");
+		
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temp)));
+		
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(entries.size());
 			
-			if (strArr.length < 2) {
-				return ipArr;
+			for (Cache_Entry entry : entries) {
+				if (entry.isAnswer()) {
+					writeAnswer(out, entry);
+				} else {
+					writeServer(out, entry);
+				}
 			}
-			
-			int length = strArr[0].length() + 1;
-			return findName(name.substring(length), time);
+		} finally {
+			out.close();
 		}
-				
-		return ipArr;
+		
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE);
 	}
 	
 	/****************************************************************
-	 * Returns a list of IP addressed found in the answer cache to be 
-	 * associated with the given name
+	 * Writes a name server entry to a snapshot.
+	 ***************************************************************/
+	private void writeServer(DataOutputStream out, Cache_Entry entry) 
+			throws IOException {
+		out.writeByte(SERVER_RECORD);
+		writeBytes(out, entry.getKey().toBytes());
+		writeBytes(out, entry.getName().getBytes(StandardCharsets.UTF_8));
+		out.writeInt(entry.getTTL());
+		out.writeLong(entry.getTTD());
+		writeBytes(out, (entry.getIP() == null) ? new byte[0] :
+				entry.getIP().getAddress());
+	}
+	
+	/****************************************************************
+	 * Writes an answer entry to a snapshot.
+	 ***************************************************************/
+	private void writeAnswer(DataOutputStream out, Cache_Entry entry) 
+			throws IOException {
+		Answer_Key key = entry.getAnswerKey();
+		
+		out.writeByte(ANSWER_RECORD);
+		writeBytes(out, key.getName().toBytes());
+		out.writeInt(key.getType());
+		out.writeShort(key.getDNSClass());
+		writeBytes(out, entry.getName().getBytes(StandardCharsets.UTF_8));
+		out.writeInt(entry.getTTL());
+		out.writeLong(entry.getTTD());
+		out.writeLong(entry.getStored());
+		writeBytes(out, entry.getWire());
+		
+		int[] ttlIndexes = entry.getTTLIndexes();
+		out.writeShort(ttlIndexes.length);
+		
+		for (int index : ttlIndexes) {
+			out.writeShort(index);
+		}
+	}
+	
+	/****************************************************************
+	 * Writes a byte array preceded by its length.
+	 ***************************************************************/
+	private static void writeBytes(DataOutputStream out, byte[] bytes) 
+			throws IOException {
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+	
+	/****************************************************************
+	 * Loads the entries in a snapshot file into the cache. The file 
+	 * is mapped into memory rather than read through a stream. Since
+	 * entries keep the time they die, not how long they have left, 
+	 * their TTLs carry on counting down from where they were; 
+	 * entries which have expired since the snapshot are skipped.
 	 * 
-	 * @param name domain name to be searched in the cache
+	 * @param path path of the snapshot file.
 	 * @param time current time in seconds.
-	 * @return list of IP addressed found in the answer cache to be 
-	 * associated with the given name.
+	 * @return number of entries loaded.
+	 * @throws IOException if the file cannot be read or is not a
+	 * valid snapshot.
 	 ***************************************************************/
-	public DNS_Packet findAnswer(String name, long time) {
-		
-		DNS_Packet packet = null;
+	public int load(String path, long time) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path), 
+				StandardOpenOption.READ);
+		MappedByteBuffer buf;
 		
-		checkForExpired(time);
+		try {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+					channel.size());
+		} finally {
+			channel.close();
+		}
 		
-		for (Cache_Entry entry : answers) {
-			if (entry.getName().equals(name)) {
+		try {
+			if (buf.getInt() != SNAPSHOT_MAGIC || 
+					buf.getInt() != SNAPSHOT_VERSION) {
+				throw new IOException("Not a cache snapshot: " + path);
+			}
+			
+			int count = buf.getInt();
+			int loaded = 0;
+			
+			for (int i = 0; i < count; i++) {
+				Cache_Entry entry;
+				
+				if (buf.get() == ANSWER_RECORD) {
+					entry = readAnswer(buf);
+				} else {
+					entry = readServer(buf);
+				}
+				
+				if (removeAt(entry) <= time) continue;
 				
-				packet = entry.getPacket();
-				break;
+				restore(entry, time);
+				loaded++;
 			}
+			
+			return loaded;
+		} catch (RuntimeException re) {
+			throw new IOException("Corrupt cache snapshot: " + path, re);
 		}
-				
-		return packet;
 	}
 	
 	/****************************************************************
-	 * Checks for entries in the cache that are past their time to
-	 * die.
+	 * Reads a name server entry from a snapshot.
+	 ***************************************************************/
+	private Cache_Entry readServer(ByteBuffer buf) throws IOException {
+		DNS_Name zone = DNS_Name.read(readBytes(buf), 0);
+		String name = new String(readBytes(buf), StandardCharsets.UTF_8);
+		int TTL = buf.getInt();
+		long TTD = buf.getLong();
+		byte[] address = readBytes(buf);
+		InetAddress IP = null;
+
+		if (address.length > 0) {
+			IP = InetAddress.getByAddress(address);
+		}
+		
+		Cache_Entry entry = new Cache_Entry(TTL, TTD, IP, name);
+		entry.setKey(zone);
+		
+		if (IP == null) {
+			entry.setServer(DNS_Name.of(name));
+		}
+		
+		return entry;
+	}
+	
+	/****************************************************************
+	 * Reads an answer entry from a snapshot.
+	 ***************************************************************/
+	private Cache_Entry readAnswer(ByteBuffer buf) {
+		DNS_Name qname = DNS_Name.read(readBytes(buf), 0);
+		int type = buf.getInt();
+		int dnsClass = buf.getShort() & 0xFFFF;
+		String name = new String(readBytes(buf), StandardCharsets.UTF_8);
+		int TTL = buf.getInt();
+		long TTD = buf.getLong();
+		long stored = buf.getLong();
+		byte[] wire = readBytes(buf);
+		
+		int[] ttlIndexes = new int[buf.getShort() & 0xFFFF];
+		
+		for (int i = 0; i < ttlIndexes.length; i++) {
+			ttlIndexes[i] = buf.getShort() & 0xFFFF;
+		}
+		
+		Cache_Entry entry = new Cache_Entry(TTL, TTD, name, wire, 
+				ttlIndexes, stored);
+		entry.setAnswerKey(new Answer_Key(qname, type, dnsClass));
+		return entry;
+	}
+	
+	/****************************************************************
+	 * Reads a byte array preceded by its length.
+	 ***************************************************************/
+	private static byte[] readBytes(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+		buf.get(bytes);
+		return bytes;
+	}
+	
+	/****************************************************************
+	 * Puts an entry read from a snapshot back in the cache.
 	 * 
+	 * @param entry the entry to restore.
 	 * @param time current time in seconds.
 	 ***************************************************************/
-	private void checkForExpired(long time) {
-		ArrayList<Cache_Entry> toRemove = new ArrayList<Cache_Entry>();
+	private synchronized void restore(Cache_Entry entry, long time) {
+		if (entry.isAnswer()) {
+			store(entry, time);
+			return;
+		}
 		
-		for (Cache_Entry entry : cache) {
-			if (entry.getTTD() <= time) {
-				toRemove.add(entry);
-			}
+		ArrayList<Cache_Entry> servers = cache.get(entry.getKey());
+		
+		if (servers == null) {
+			servers = new ArrayList<Cache_Entry>();
+			cache.put(entry.getKey(), servers);
 		}
 		
-		cache.removeAll(toRemove);
+		servers.add(entry);
+		track(entry);
+		evict();
+	}
+	
+	/****************************************************************
+	 * @param entry an entry in the cache.
+	 * @return time in seconds the entry may be removed: its time to
+	 * die, plus the stale window for answers.
+	 ***************************************************************/
+	private long removeAt(Cache_Entry entry) {
+		if (entry.isAnswer()) return entry.getTTD() + staleWindow;
+		return entry.getTTD();
+	}
+	
+	/****************************************************************
+	 * Removes entries that are past their time to die, soonest to 
+	 * die first, stopping once the limit is reached.
+	 * 
+	 * @param time current time in seconds.
+	 * @param limit most entries to remove.
+	 ***************************************************************/
+	private void expire(long time, int limit) {
+		
+		while (limit > 0) {
+			Cache_Entry entry = expiry.peek();
+			
+			if (entry == null || removeAt(entry) > time) break;
+			
+			expiry.poll();
+			remove(entry);
+			limit--;
+		}
+	}
+	
+	/****************************************************************
+	 * Starts tracking a new entry for expiry and eviction. 
+	 * 
+	 * @param entry entry which was just stored.
+	 ***************************************************************/
+	private void track(Cache_Entry entry) {
+		expiry.add(entry);
+		policy.add(entry);
 		
-		for (Cache_Entry entry : answers) {
-			if (entry.getTTD() <= time) {
-				toRemove.add(entry);
+		/* Rebuilds the expiry queue once most of it is made up of 
+		 * entries which were replaced or evicted. */
+		if (expiry.size() > 2 * policy.size() + EXPIRE_BATCH) {
+			PriorityQueue<Cache_Entry> live = new PriorityQueue<Cache_Entry>(
+					policy.size() + 1, expiry.comparator());
+			
+			for (Cache_Entry e : expiry) {
+				if (policy.contains(e)) live.add(e);
 			}
+			
+			expiry = live;
+		}
+	}
+	
+	/****************************************************************
+	 * Evicts entries chosen by the policy until the cache is within
+	 * its entry and byte limits.
+	 ***************************************************************/
+	private void evict() {
+		
+		while (policy.size() > maxEntries || policy.getBytes() > maxBytes) {
+			Cache_Entry victim = policy.victim();
+			
+			if (victim == null) break;
+			
+			remove(victim);
+			evictions++;
 		}
+	}
+	
+	/****************************************************************
+	 * Removes the given entry from the store that holds it. Does 
+	 * nothing if the entry has already been replaced or removed.
+	 * 
+	 * @param entry entry to remove.
+	 ***************************************************************/
+	private void remove(Cache_Entry entry) {
+		
+		policy.remove(entry);
 		
-		answers.removeAll(toRemove);
+		if (entry.isAnswer()) {
+			answers.remove(entry.getAnswerKey(), entry);
+			return;
+		}
+		
+		ArrayList<Cache_Entry> servers = cache.get(entry.getKey());
+		
+		if (servers != null && servers.remove(entry) && servers.isEmpty()) {
+			cache.remove(entry.getKey());
+		}
 	}
 		
-	public String toString() {
+	/****************************************************************
+	 * @param type QTYPE of the questions.
+	 * @return share of answer lookups for the type which were hits,
+	 * from 0 to 1, or 0 if there have been none.
+	 ***************************************************************/
+	public synchronized double getHitRate(int type) {
+		long[] counts = lookups.get(type);
+		
+		if (counts == null) return 0;
+		
+		return (double) counts[0] / (counts[0] + counts[1]);
+	}
+	
+	/****************************************************************
+	 * @return number of entries evicted to stay within the limits.
+	 ***************************************************************/
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/****************************************************************
+	 * @return number of entries in the cache.
+	 ***************************************************************/
+	public synchronized int getSize() {
+		return policy.size();
+	}
+	
+	/****************************************************************
+	 * @return estimated number of bytes used by the cache.
+	 ***************************************************************/
+	public synchronized long getBytes() {
+		return policy.getBytes();
+	}
+	
+	public synchronized String toString() {
 		String str = "\n--Cache Entries--";
 		str += String.format("\n #  |%10s  %18s  %15s", "TTL", "Name", "IPv4");
 		int count = 1;
 		
-		checkForExpired(System.currentTimeMillis() / 1000);
+		expire(System.currentTimeMillis() / 1000, Integer.MAX_VALUE);
 		
 		if (!cache.isEmpty()) {
 			str += "\n" + new String(new char[52]).replace("\0", "-");
-			for (Cache_Entry entry : cache) {
-				str += String.format("\n%03d |", count);
-				str += entry.toString();
+			for (ArrayList<Cache_Entry> servers : cache.values()) {
+				for (Cache_Entry entry : servers) {
+					str += String.format("\n%03d |", count);
+					str += entry.toString();
 
-				count++;
+					count++;
+				}
 			}
 		} 
 		
@@ -207,13 +1238,48 @@ public class Cache {
 			str += String.format("\n%35s", "Answers");
 			str += String.format("\n%15s  %22s  %23s", "TTL", "Name", "RDATA");
 			str += "\n" + new String(new char[64]).replace("\0", "-");
-			for (Cache_Entry entry : answers) {
+			for (Cache_Entry entry : answers.values()) {
 				str += entry.toString();
 			}
 
 		} else if (cache.isEmpty()) {
 			str = "-No entries in the cache-";
 		}
+		
+		str += String.format("\nEntries: %d/%d, Bytes: %d/%d, Evictions: %d" +
+				", Stale served: %d", policy.size(), maxEntries, 
+				policy.getBytes(), maxBytes, evictions, staleServed);
+		
+		if (!lookups.isEmpty()) {
+			str += "\nHit rate:";
+			
+			for (Map.Entry<Integer, long[]> e : lookups.entrySet()) {
+				long hits = e.getValue()[0];
+				long total = hits + e.getValue()[1];
+				
+				str += String.format(" %s %d/%d (%.0f%%)", 
+						typeName(e.getKey()), hits, total, 
+						100.0 * hits / total);
+			}
+		}
+		
 		return str;
 	}
+	
+	/****************************************************************
+	 * @param type a QTYPE.
+	 * @return the mnemonic for the type, such as "AAAA".
+	 ***************************************************************/
+	private static String typeName(int type) {
+		switch (type) {
+		case DNS_Answer.A_TYPE: return "A";
+		case DNS_Answer.NS_TYPE: return "NS";
+		case DNS_Answer.CNAME_TYPE: return "CNAME";
+		case DNS_Answer.SOA_TYPE: return "SOA";
+		case DNS_Answer.PTR_TYPE: return "PTR";
+		case DNS_Answer.MX_TYPE: return "MX";
+		case DNS_Answer.AAAA_TYPE: return "AAAA";
+		default: return "TYPE" + type;
+		}
+	}
 }
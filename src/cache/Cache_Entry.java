@@ -4,7 +4,9 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 
 import packet.DNS_Answer;
+import packet.DNS_Name;
 import packet.DNS_Packet;
+import packet.Wire_Format;
 
 /********************************************************************
  * Cache_Entry.java
@@ -17,6 +19,10 @@ import packet.DNS_Packet;
  *******************************************************************/
 public class Cache_Entry {
 	
+	/** Estimated bytes used by an entry apart from its name and 
+	 * packet. */
+	private static final int OVERHEAD = 96;
+	
 	/** Time to live in seconds. */
 	private int TTL;
 	
@@ -29,8 +35,33 @@ public class Cache_Entry {
 	/** Name associated with this entry. */
 	private String name;
 	
-	/** Packet associated with this entry. */
-	private DNS_Packet packet;
+	/** Answer packet associated with this entry, encoded exactly as
+	 * it is sent apart from the ID and TTLs. */
+	private byte[] wire;
+	
+	/** Index in the encoded packet of each record's TTL field. */
+	private int[] ttlIndexes;
+	
+	/** TTL of each record when the entry was stored. */
+	private int[] ttls;
+	
+	/** Time in seconds the entry was stored. */
+	private long stored;
+	
+	/** Number of times this entry has been found by a lookup. */
+	private int hits;
+	
+	/** True once a refresh of this entry has been started. */
+	private boolean prefetching;
+	
+	/** Key this entry is stored under in the cache. */
+	private DNS_Name key;
+	
+	/** Name of the name server, for an entry without its address. */
+	private DNS_Name server;
+	
+	/** Key an answer is stored under in the cache. */
+	private Answer_Key answerKey;
 	
 	/****************************************************************
 	 * Constructor used for steps in the resolving process.
@@ -53,13 +84,23 @@ public class Cache_Entry {
 	 * @param TTL time to live.
 	 * @param TTD time to die.
 	 * @param name Name associated with this entry
-	 * @param p Packet associated with this entry
+	 * @param wire encoded answer packet associated with this entry
+	 * @param ttlIndexes index in the packet of each TTL field
+	 * @param time time in seconds the entry is stored
 	 ***************************************************************/
-	public Cache_Entry(int TTL, long TTD, String name, DNS_Packet p) {
+	public Cache_Entry(int TTL, long TTD, String name, byte[] wire, 
+			int[] ttlIndexes, long time) {
 		this.TTL = TTL;
 		this.TTD = TTD;
 		this.name = name;
-		packet = p;
+		this.wire = wire;
+		this.ttlIndexes = ttlIndexes;
+		stored = time;
+		
+		ttls = new int[ttlIndexes.length];
+		for (int i = 0; i < ttls.length; i++) {
+			ttls[i] = Wire_Format.readInt(wire, ttlIndexes[i]);
+		}
 	}
 	
 	/****************************************************************
@@ -77,7 +118,8 @@ public class Cache_Entry {
 	}
 	
 	/****************************************************************
-	 * @return IP address associated with this entry. 
+	 * @return IP address associated with this entry, or null for the
+	 * name of a name server whose address is not known.
 	 ***************************************************************/
 	public InetAddress getIP() {
 		return IP;
@@ -91,20 +133,203 @@ public class Cache_Entry {
 	}
 	
 	/****************************************************************
+	 * @return number of times this entry has been found by a lookup.
+	 ***************************************************************/
+	public int getHits() {
+		return hits;
+	}
+	
+	/****************************************************************
+	 * Counts a lookup which found this entry.
+	 ***************************************************************/
+	void hit() {
+		hits++;
+	}
+	
+	/****************************************************************
+	 * @return time in seconds an answer was stored.
+	 ***************************************************************/
+	public long getStored() {
+		return stored;
+	}
+	
+	/****************************************************************
+	 * @return the encoded answer packet. Must not be modified.
+	 ***************************************************************/
+	byte[] getWire() {
+		return wire;
+	}
+	
+	/****************************************************************
+	 * @return index in the encoded answer of each TTL field.
+	 ***************************************************************/
+	int[] getTTLIndexes() {
+		return ttlIndexes;
+	}
+	
+	/****************************************************************
+	 * @return true once a refresh of this entry has been started.
+	 ***************************************************************/
+	boolean isPrefetching() {
+		return prefetching;
+	}
+	
+	/****************************************************************
+	 * Marks that a refresh of this entry has been started.
+	 ***************************************************************/
+	void setPrefetching() {
+		prefetching = true;
+	}
+
+	/****************************************************************
+	 * Marks that the refresh of this entry has ended without
+	 * replacing it, so another may be started.
+	 ***************************************************************/
+	void clearPrefetching() {
+		prefetching = false;
+	}
+	
+	/****************************************************************
+	 * @return true if this entry holds an answer packet.
+	 ***************************************************************/
+	public boolean isAnswer() {
+		return wire != null;
+	}
+	
+	/****************************************************************
+	 * Parses the answer packet associated with this entry. Only used
+	 * for display; answers are sent with toReply.
+	 * 
 	 * @return Packet associated with this entry. 
 	 ***************************************************************/
 	public DNS_Packet getPacket() {
-		return packet;
+		if (wire == null) return null;
+		return new DNS_Packet(wire, wire.length);
+	}
+	
+	/****************************************************************
+	 * Copies the encoded answer, writes in the ID and question of the
+	 * query being answered and lowers each TTL by the time since it
+	 * was stored.
+	 * 
+	 * @param query bytes of the query being answered.
+	 * @param time current time in seconds.
+	 * @return bytes of the reply, ready to send.
+	 ***************************************************************/
+	public byte[] toReply(byte[] query, long time) {
+		byte[] reply = wire.clone();
+		reply[0] = query[0];
+		reply[1] = query[1];
+		DNS_Packet.echoQuestion(query, reply);
+		
+		int elapsed = (int) Math.max(0, time - stored);
+		
+		for (int i = 0; i < ttlIndexes.length; i++) {
+			int ttl = Math.max(0, ttls[i] - elapsed);
+			Wire_Format.writeInt(reply, ttlIndexes[i], ttl);
+		}
+		
+		return reply;
+	}
+	
+	/****************************************************************
+	 * Copies the encoded answer for use after it has expired, 
+	 * writing in the ID and question of the query being answered and
+	 * giving every record the same short TTL.
+	 * 
+	 * @param query bytes of the query being answered.
+	 * @param ttl TTL to give every record.
+	 * @return bytes of the reply, ready to send.
+	 ***************************************************************/
+	public byte[] toStaleReply(byte[] query, int ttl) {
+		byte[] reply = wire.clone();
+		reply[0] = query[0];
+		reply[1] = query[1];
+		DNS_Packet.echoQuestion(query, reply);
+		
+		for (int i = 0; i < ttlIndexes.length; i++) {
+			Wire_Format.writeInt(reply, ttlIndexes[i], ttl);
+		}
+		
+		return reply;
+	}
+	
+	/****************************************************************
+	 * @return estimated number of bytes of memory used by this entry.
+	 ***************************************************************/
+	public int getSize() {
+		int size = OVERHEAD + 2 * name.length();
+		
+		if (wire != null) {
+			size += wire.length + 8 * ttls.length;
+		}
+		
+		return size;
+	}
+	
+	/****************************************************************
+	 * @return key this entry is stored under in the cache.
+	 ***************************************************************/
+	DNS_Name getKey() {
+		return key;
+	}
+	
+	/****************************************************************
+	 * @param key key this entry is stored under in the cache.
+	 ***************************************************************/
+	void setKey(DNS_Name key) {
+		this.key = key;
+	}
+	
+	/****************************************************************
+	 * @return name of the name server, for an entry without its
+	 * address.
+	 ***************************************************************/
+	DNS_Name getServer() {
+		return server;
+	}
+	
+	/****************************************************************
+	 * @param server name of the name server.
+	 ***************************************************************/
+	void setServer(DNS_Name server) {
+		this.server = server;
+	}
+	
+	/****************************************************************
+	 * @return key an answer is stored under in the cache.
+	 ***************************************************************/
+	Answer_Key getAnswerKey() {
+		return answerKey;
+	}
+	
+	/****************************************************************
+	 * @param answerKey key an answer is stored under in the cache.
+	 ***************************************************************/
+	void setAnswerKey(Answer_Key answerKey) {
+		this.answerKey = answerKey;
 	}
 	
 	public String toString() {
+		DNS_Packet packet = getPacket();
+		
 		if (packet == null) {
-			String ip = IP.getHostAddress();
+			String ip = (IP == null) ? "<NS>" : IP.getHostAddress();
 			return String.format("%10d  %18s  %15s", TTL, name, ip);
 		} else {
 			String str = "";
 			ArrayList<DNS_Answer> answers = packet.getAnswers();
 			
+			if (answers.isEmpty()) {
+				String kind = "<NODATA>";
+				
+				if (answerKey.getType() == Answer_Key.ALL_TYPES) {
+					kind = "<NXDOMAIN>";
+				}
+				
+				return String.format("\n%15d  %22s  %23s", TTL, name, kind);
+			}
+			
 			for (DNS_Answer answ : answers) {
 				int ttl = answ.getTTL();
 				String name = answ.getName();
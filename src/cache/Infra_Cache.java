@@ -0,0 +1,236 @@
+package cache;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import packet.DNS_Name;
+
+/********************************************************************
+ * Infra_Cache.java
+ *
+ * Remembers which upstream servers have recently failed for a zone:
+ * timed out, answered SERVFAIL or REFUSED, or answered lamely for a
+ * zone they do not serve. A failing server is held down and skipped
+ * for that zone. Each failure in a row doubles the hold-down, up to
+ * a cap, and once it ends a single query is let through to probe the
+ * server. A good reply from the server clears its record.
+ *
+ * Lameness is kept per zone, since a server lame for one zone may
+ * still serve others well. Only the most recently updated records
+ * are kept, so the cache does not grow without bound.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Infra_Cache {
+
+	/** Hold-down in milliseconds after the first failure. */
+	private final long FAILURE_HOLD = 2000;
+
+	/** Hold-down in milliseconds after the first lame reply. Lame
+	 * delegations are mistakes in the zone data, which are not
+	 * fixed as quickly as a server comes back up. */
+	private final long LAME_HOLD = 60000;
+
+	/** Longest hold-down in milliseconds. */
+	private final long MAX_HOLD = 15 * 60000;
+
+	/** Time in milliseconds a probe has to come back before another
+	 * query may probe the same server. */
+	private final long PROBE_WINDOW = 7000;
+
+	/** Most servers kept. */
+	private final int MAX_ENTRIES = 4096;
+
+	/** Record of each server which has failed, by server and zone,
+	 * least recently updated first. */
+	private LinkedHashMap<Server_Key, Server_Health> servers;
+
+	/****************************************************************
+	 * Constructor for Infra_Cache.
+	 ***************************************************************/
+	public Infra_Cache() {
+		servers = new LinkedHashMap<Server_Key, Server_Health>() {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<Server_Key, Server_Health> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+	}
+
+	/****************************************************************
+	 * Records that a server timed out or answered with an error.
+	 *
+	 * @param server address of the server.
+	 * @param zone the zone the server was asked about.
+	 * @param time current time in milliseconds.
+	 ***************************************************************/
+	public synchronized void recordFailure(InetAddress server,
+			DNS_Name zone, long time) {
+		hold(server, zone, time, false);
+	}
+
+	/****************************************************************
+	 * Records that a server answered lamely for a zone: with neither
+	 * an answer nor a referral closer to the name asked about.
+	 *
+	 * @param server address of the server.
+	 * @param zone the zone the server was asked about.
+	 * @param time current time in milliseconds.
+	 ***************************************************************/
+	public synchronized void recordLame(InetAddress server,
+			DNS_Name zone, long time) {
+		hold(server, zone, time, true);
+	}
+
+	/****************************************************************
+	 * Records that a server gave a good reply for a zone, clearing
+	 * any failures it had.
+	 *
+	 * @param server address of the server.
+	 * @param zone the zone the server was asked about.
+	 ***************************************************************/
+	public synchronized void recordSuccess(InetAddress server,
+			DNS_Name zone) {
+		if (servers.isEmpty()) return;
+
+		servers.remove(new Server_Key(server, zone));
+	}
+
+	/****************************************************************
+	 * Returns the servers for a zone which are not held down. A
+	 * server whose hold-down has ended is included as a probe, and
+	 * held down again until the probe comes back. If every server is
+	 * held down, the one whose hold-down ends first is probed early
+	 * rather than giving up on the zone.
+	 *
+	 * @param list servers for the zone.
+	 * @param zone the zone.
+	 * @param time current time in milliseconds.
+	 * @return a new list of the servers to try.
+	 ***************************************************************/
+	public synchronized ArrayList<InetAddress> filter(
+			List<InetAddress> list, DNS_Name zone, long time) {
+
+		ArrayList<InetAddress> usable = new ArrayList<InetAddress>();
+
+		if (servers.isEmpty()) {
+			usable.addAll(list);
+			return usable;
+		}
+
+		Server_Health soonest = null;
+		InetAddress soonestServer = null;
+
+		for (InetAddress server : list) {
+			Server_Health health = servers.get(new Server_Key(server, zone));
+
+			if (health == null) {
+				usable.add(server);
+				continue;
+			}
+
+			if (health.heldUntil <= time) {
+				health.heldUntil = time + PROBE_WINDOW;
+				usable.add(server);
+				continue;
+			}
+
+			if (soonest == null || health.heldUntil < soonest.heldUntil) {
+				soonest = health;
+				soonestServer = server;
+			}
+		}
+
+		if (usable.isEmpty() && soonest != null) {
+			soonest.heldUntil = time + PROBE_WINDOW;
+			usable.add(soonestServer);
+		}
+
+		return usable;
+	}
+
+	/****************************************************************
+	 * Counts a failure of a server and holds it down for twice as
+	 * long as the last time, starting from the base hold-down for the
+	 * kind of failure.
+	 ***************************************************************/
+	private void hold(InetAddress server, DNS_Name zone, long time,
+			boolean lame) {
+		Server_Key key = new Server_Key(server, zone);
+		Server_Health health = servers.remove(key);
+
+		if (health == null) {
+			health = new Server_Health();
+		}
+
+		health.lame |= lame;
+		health.failures = Math.min(health.failures + 1, 30);
+
+		long base = health.lame ? LAME_HOLD : FAILURE_HOLD;
+		long hold = base << Math.min(health.failures - 1, 20);
+		health.heldUntil = time + Math.min(MAX_HOLD, hold);
+
+		/* Puts the record back last, as the most recently updated. */
+		servers.put(key, health);
+	}
+
+	/****************************************************************
+	 * A server and the zone it was asked about.
+	 ***************************************************************/
+	private static final class Server_Key {
+
+		/** Address of the server. */
+		private final InetAddress server;
+
+		/** Name of the zone. */
+		private final DNS_Name zone;
+
+		/************************************************************
+		 * Constructor for Server_Key.
+		 *
+		 * @param server address of the server.
+		 * @param zone name of the zone.
+		 ***********************************************************/
+		private Server_Key(InetAddress server, DNS_Name zone) {
+			this.server = server;
+			this.zone = zone;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Server_Key)) return false;
+
+			Server_Key other = (Server_Key) o;
+			return server.equals(other.server) && zone.equals(other.zone);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * server.hashCode() + zone.hashCode();
+		}
+	}
+
+	/****************************************************************
+	 * Failures of one server for one zone.
+	 ***************************************************************/
+	private static final class Server_Health {
+
+		/** Failures in a row. */
+		private int failures;
+
+		/** True if the server has answered lamely for the zone. */
+		private boolean lame;
+
+		/** Time in milliseconds the server is held down until. */
+		private long heldUntil;
+	}
+}
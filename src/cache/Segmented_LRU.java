@@ -0,0 +1,129 @@
+package cache;
+
+import java.util.LinkedHashMap;
+
+/********************************************************************
+ * Segmented_LRU.java
+ *
+ * Decides which entry leaves the cache when it is over its budget.
+ * New entries start in a probation segment and are moved to a
+ * protected segment the first time they are used again. Victims are
+ * taken from the least recently used end of probation first, so
+ * names seen only once are dropped before names in regular use.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Segmented_LRU {
+
+	/** Entries seen once, least recently used first. */
+	private LinkedHashMap<Cache_Entry, Boolean> probation;
+
+	/** Entries used more than once, least recently used first. */
+	private LinkedHashMap<Cache_Entry, Boolean> protect;
+
+	/** Most entries the protected segment may hold. */
+	private int protectedMax;
+
+	/** Estimated size in bytes of every tracked entry. */
+	private long bytes;
+
+	/****************************************************************
+	 * Constructor for Segmented_LRU.
+	 *
+	 * @param protectedMax most entries the protected segment may
+	 * hold before its oldest entry is moved back to probation.
+	 ***************************************************************/
+	public Segmented_LRU(int protectedMax) {
+		this.protectedMax = protectedMax;
+		probation = new LinkedHashMap<Cache_Entry, Boolean>();
+		protect = new LinkedHashMap<Cache_Entry, Boolean>();
+		bytes = 0;
+	}
+
+	/****************************************************************
+	 * Starts tracking a new entry in the probation segment.
+	 *
+	 * @param entry entry added to the cache.
+	 ***************************************************************/
+	public void add(Cache_Entry entry) {
+		probation.put(entry, Boolean.TRUE);
+		bytes += entry.getSize();
+	}
+
+	/****************************************************************
+	 * Records a use of the entry. An entry on probation is promoted
+	 * to the protected segment.
+	 *
+	 * @param entry entry found by a lookup.
+	 ***************************************************************/
+	public void touch(Cache_Entry entry) {
+		if (protect.remove(entry) != null) {
+			protect.put(entry, Boolean.TRUE);
+			return;
+		}
+
+		if (probation.remove(entry) == null) return;
+
+		protect.put(entry, Boolean.TRUE);
+
+		/* Demotes the oldest protected entry to make room. */
+		if (protect.size() > protectedMax) {
+			Cache_Entry oldest = protect.keySet().iterator().next();
+			protect.remove(oldest);
+			probation.put(oldest, Boolean.TRUE);
+		}
+	}
+
+	/****************************************************************
+	 * Stops tracking the entry.
+	 *
+	 * @param entry entry removed from the cache.
+	 ***************************************************************/
+	public void remove(Cache_Entry entry) {
+		if (probation.remove(entry) != null ||
+				protect.remove(entry) != null) {
+			bytes -= entry.getSize();
+		}
+	}
+
+	/****************************************************************
+	 * @param entry entry to look for.
+	 * @return true if the entry is tracked.
+	 ***************************************************************/
+	public boolean contains(Cache_Entry entry) {
+		return probation.containsKey(entry) || protect.containsKey(entry);
+	}
+
+	/****************************************************************
+	 * @return the entry that should be evicted next, or null if no
+	 * entries are tracked.
+	 ***************************************************************/
+	public Cache_Entry victim() {
+		if (!probation.isEmpty()) {
+			return probation.keySet().iterator().next();
+		}
+
+		if (!protect.isEmpty()) {
+			return protect.keySet().iterator().next();
+		}
+
+		return null;
+	}
+
+	/****************************************************************
+	 * @return number of entries tracked.
+	 ***************************************************************/
+	public int size() {
+		return probation.size() + protect.size();
+	}
+
+	/****************************************************************
+	 * @return estimated size in bytes of every tracked entry.
+	 ***************************************************************/
+	public long getBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,66 @@
+package cache;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import packet.DNS_Name;
+
+/********************************************************************
+ * Zone_Cut.java
+ *
+ * The closest zone above a name whose servers are in the cache: the
+ * addresses of its name servers, if any glue is known, and the names
+ * of its name servers, which can be looked up when there is none.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Zone_Cut {
+
+	/** Name of the zone. */
+	private DNS_Name zone;
+
+	/** Addresses of the zone's name servers. */
+	private ArrayList<InetAddress> addresses;
+
+	/** Names of the zone's name servers outside of the zone. */
+	private ArrayList<DNS_Name> nameServers;
+
+	/****************************************************************
+	 * Constructor for Zone_Cut.
+	 *
+	 * @param zone name of the zone.
+	 * @param addresses addresses of the zone's name servers.
+	 * @param nameServers names of the zone's name servers which are
+	 * outside of the zone, and so can be looked up without it.
+	 ***************************************************************/
+	public Zone_Cut(DNS_Name zone, ArrayList<InetAddress> addresses,
+			ArrayList<DNS_Name> nameServers) {
+		this.zone = zone;
+		this.addresses = addresses;
+		this.nameServers = nameServers;
+	}
+
+	/****************************************************************
+	 * @return name of the zone.
+	 ***************************************************************/
+	public DNS_Name getZone() {
+		return zone;
+	}
+
+	/****************************************************************
+	 * @return addresses of the zone's name servers, which may be empty.
+	 ***************************************************************/
+	public ArrayList<InetAddress> getAddresses() {
+		return addresses;
+	}
+
+	/****************************************************************
+	 * @return names of the zone's name servers outside of the zone.
+	 ***************************************************************/
+	public ArrayList<DNS_Name> getNameServers() {
+		return nameServers;
+	}
+}
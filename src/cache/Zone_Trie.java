@@ -0,0 +1,216 @@
+package cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import packet.DNS_Name;
+
+/********************************************************************
+ * Zone_Trie.java
+ *
+ * Holds a value for each zone in a tree read from the root down, so
+ * www.example.com sits under com, then example.com. Each node's
+ * children are indexed by their interned names, found by walking up
+ * from the name with DNS_Name.parent(), so no label is ever copied
+ * out as text. The zones above a name are found in a single walk down
+ * the tree, taking one step per label of the name however many zones
+ * are stored. Nodes which hold nothing and lead nowhere are removed
+ * as values are.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Zone_Trie<V> {
+
+	/** Node of the root zone. */
+	private Node<V> root;
+
+	/** Number of zones holding a value. */
+	private int size;
+
+	/****************************************************************
+	 * Constructor for Zone_Trie.
+	 ***************************************************************/
+	public Zone_Trie() {
+		root = new Node<V>(null, null);
+	}
+
+	/****************************************************************
+	 * @param zone name of the zone.
+	 * @return the value of the zone, or null if it has none.
+	 ***************************************************************/
+	public V get(DNS_Name zone) {
+		Node<V> node = find(zone, false);
+		return (node == null) ? null : node.value;
+	}
+
+	/****************************************************************
+	 * Sets the value of a zone, adding nodes for it as needed.
+	 *
+	 * @param zone name of the zone.
+	 * @param value the value.
+	 ***************************************************************/
+	public void put(DNS_Name zone, V value) {
+		Node<V> node = find(zone, true);
+
+		if (node.value == null) size++;
+
+		node.value = value;
+	}
+
+	/****************************************************************
+	 * Removes the value of a zone, along with any nodes left empty.
+	 *
+	 * @param zone name of the zone.
+	 ***************************************************************/
+	public void remove(DNS_Name zone) {
+		Node<V> node = find(zone, false);
+
+		if (node == null || node.value == null) return;
+
+		node.value = null;
+		size--;
+
+		while (node.parent != null && node.value == null &&
+				(node.children == null || node.children.isEmpty())) {
+			node.parent.children.remove(node.zone);
+			node = node.parent;
+		}
+	}
+
+	/****************************************************************
+	 * Walks down the tree along the labels of a name and returns the
+	 * value of every zone passed on the way, the zone nearest the
+	 * name first. The name itself counts if it is a zone.
+	 *
+	 * @param name the name to walk to.
+	 * @return values of the zones above the name, deepest first.
+	 ***************************************************************/
+	public ArrayList<V> findPath(DNS_Name name) {
+		ArrayList<V> found = new ArrayList<V>();
+		Node<V> node = root;
+
+		if (node.value != null) found.add(node.value);
+
+		for (DNS_Name zone : path(name)) {
+			if (node.children == null) break;
+
+			node = node.children.get(zone);
+
+			if (node == null) break;
+
+			if (node.value != null) found.add(0, node.value);
+		}
+
+		return found;
+	}
+
+	/****************************************************************
+	 * @return the value of every zone.
+	 ***************************************************************/
+	public ArrayList<V> values() {
+		ArrayList<V> values = new ArrayList<V>(size);
+		ArrayList<Node<V>> stack = new ArrayList<Node<V>>();
+		stack.add(root);
+
+		while (!stack.isEmpty()) {
+			Node<V> node = stack.remove(stack.size() - 1);
+
+			if (node.value != null) values.add(node.value);
+
+			if (node.children != null) stack.addAll(node.children.values());
+		}
+
+		return values;
+	}
+
+	/****************************************************************
+	 * @return true if no zone holds a value.
+	 ***************************************************************/
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/****************************************************************
+	 * Returns the names between the root and a name, in the order the
+	 * tree is walked: com, example.com, www.example.com for
+	 * www.example.com.
+	 *
+	 * @param name the name to walk to.
+	 * @return the name and each of its parents but the root, the
+	 * name last.
+	 ***************************************************************/
+	private static DNS_Name[] path(DNS_Name name) {
+		DNS_Name[] path = new DNS_Name[name.labelCount()];
+
+		for (int i = path.length - 1; i >= 0; i--) {
+			path[i] = name;
+			name = name.parent();
+		}
+
+		return path;
+	}
+
+	/****************************************************************
+	 * Finds the node of a zone.
+	 *
+	 * @param zone name of the zone.
+	 * @param create true to add missing nodes on the way.
+	 * @return the node, or null if it is missing and create is false.
+	 ***************************************************************/
+	private Node<V> find(DNS_Name zone, boolean create) {
+		Node<V> node = root;
+
+		for (DNS_Name name : path(zone)) {
+			Node<V> child = null;
+
+			if (node.children != null) child = node.children.get(name);
+
+			if (child == null) {
+				if (!create) return null;
+
+				if (node.children == null) {
+					node.children = new HashMap<DNS_Name, Node<V>>();
+				}
+
+				child = new Node<V>(node, name);
+				node.children.put(name, child);
+			}
+
+			node = child;
+		}
+
+		return node;
+	}
+
+	/****************************************************************
+	 * One zone in the tree.
+	 ***************************************************************/
+	private static final class Node<V> {
+
+		/** Zone above this one, or null for the root. */
+		private final Node<V> parent;
+
+		/** Name of this zone, or null for the root. */
+		private final DNS_Name zone;
+
+		/** Zones below this one by name, or null if there are none. */
+		private HashMap<DNS_Name, Node<V>> children;
+
+		/** Value of the zone, or null. */
+		private V value;
+
+		/************************************************************
+		 * Constructor for Node.
+		 *
+		 * @param parent zone above this one.
+		 * @param zone name of this zone.
+		 ***********************************************************/
+		private Node(Node<V> parent, DNS_Name zone) {
+			this.parent = parent;
+			this.zone = zone;
+		}
+	}
+}
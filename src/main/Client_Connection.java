@@ -0,0 +1,260 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/********************************************************************
+ * Client Connection
+ *
+ * A TCP connection from a client. Each message on the connection is
+ * preceded by its length in two bytes. The client may send any
+ * number of queries without waiting for their replies; each query is
+ * handed to the resolver as soon as it is read, and each reply is
+ * written back whenever its resolution ends, so replies may come
+ * back in a different order than the queries were sent.
+ *
+ * Replies are queued and written by a thread of the connection's
+ * own, so whoever sends a reply never waits on the client. A client
+ * which stops reading is cut off: its connection is closed once too
+ * many replies are queued for it or a write has been stuck for too
+ * long, rather than holding up the thread that sent the reply.
+ *
+ * The connection is closed once it has been idle for a while with no
+ * replies owed, or for longer with some still owed.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Client_Connection implements Runnable {
+
+	/** Milliseconds a connection may sit idle before it is closed. */
+	private final int IDLE_TIMEOUT = 10000;
+
+	/** Idle timeouts in a row after which the connection is closed
+	 * even though some replies are still owed. */
+	private final int MAX_IDLE = 3;
+
+	/** Milliseconds a write to the client may take before the
+	 * connection is closed. */
+	private final long WRITE_TIMEOUT = 5000;
+
+	/** Most replies which may wait to be written. */
+	private final int MAX_QUEUED = 256;
+
+	/** Queued in place of a reply to stop the writer. */
+	private static final byte[] STOP = new byte[0];
+
+	/** The client's socket. */
+	private Socket socket;
+
+	/** Stream replies are written to. */
+	private OutputStream out;
+
+	/** The listener which accepted the connection. */
+	private Client_Listener listener;
+
+	/** The resolver queries are passed to. */
+	private DNS_Resolver resolver;
+
+	/** Queries read which have not been replied to. */
+	private AtomicInteger owed;
+
+	/** Framed replies waiting to be written. */
+	private LinkedBlockingQueue<byte[]> replies;
+
+	/** Time in milliseconds the write under way started, or 0 if the
+	 * writer is not writing. */
+	private volatile long writeStarted;
+
+	/** True once the connection has been closed. */
+	private boolean closed;
+
+	/****************************************************************
+	 * Constructor for Client_Connection.
+	 *
+	 * @param socket the client's socket.
+	 * @param listener the listener which accepted the connection.
+	 * @param resolver the resolver queries are passed to.
+	 * @throws IOException if the socket's streams cannot be opened.
+	 ***************************************************************/
+	public Client_Connection(Socket socket, Client_Listener listener,
+			DNS_Resolver resolver) throws IOException {
+		this.socket = socket;
+		this.listener = listener;
+		this.resolver = resolver;
+		out = socket.getOutputStream();
+		owed = new AtomicInteger();
+		replies = new LinkedBlockingQueue<byte[]>(MAX_QUEUED);
+
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(IDLE_TIMEOUT);
+	}
+
+	/****************************************************************
+	 * Reads queries until the client closes the connection or it
+	 * sits idle for too long, passing each one to the resolver.
+	 * Starts the thread which writes the replies.
+	 ***************************************************************/
+	public void run() {
+		int idle = 0;
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "tcp-client-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+
+			while (true) {
+				int first;
+
+				/* Nothing has been read of a message if this times
+				 * out, so the connection can be kept. */
+				try {
+					first = in.read();
+				} catch (SocketTimeoutException te) {
+					if (isStuck()) break;
+					if (owed.get() > 0 && ++idle < MAX_IDLE) continue;
+					break;
+				}
+
+				if (first < 0) break;
+
+				int length = (first << 8) | in.readUnsignedByte();
+				byte[] data = new byte[length];
+				in.readFully(data);
+
+				idle = 0;
+				owed.incrementAndGet();
+				resolver.dispatch(this, data, length);
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading from client: " +
+					getAddress().getHostAddress());
+		} finally {
+			close();
+		}
+	}
+
+	/****************************************************************
+	 * Queues a reply to the client, preceded by its length, without
+	 * waiting for it to be written. Closes the connection instead if
+	 * the client has stopped reading.
+	 *
+	 * @param data the bytes to be sent.
+	 * @param length the number of bytes to send.
+	 * @throws IOException if the connection is closed or the client
+	 * has stopped reading.
+	 ***************************************************************/
+	public void send(byte[] data, int length) throws IOException {
+		byte[] framed = new byte[length + 2];
+		framed[0] = (byte) (length >> 8);
+		framed[1] = (byte) length;
+		System.arraycopy(data, 0, framed, 2, length);
+
+		owed.decrementAndGet();
+
+		synchronized (this) {
+			if (closed) throw new IOException("Connection closed");
+		}
+
+		if (isStuck() || !replies.offer(framed)) {
+			close();
+			throw new IOException("Client is not reading replies");
+		}
+	}
+
+	/****************************************************************
+	 * Writes queued replies until the connection is closed.
+	 ***************************************************************/
+	private void write() {
+		try {
+			while (true) {
+				byte[] framed = replies.take();
+
+				if (framed == STOP) break;
+
+				writeStarted = System.currentTimeMillis();
+				out.write(framed);
+				out.flush();
+				writeStarted = 0;
+			}
+		} catch (IOException e) {
+			System.err.println("Error writing to client: " +
+					getAddress().getHostAddress());
+			close();
+		} catch (InterruptedException e) {
+			close();
+		}
+	}
+
+	/****************************************************************
+	 * @return true if a write to the client has taken longer than
+	 * WRITE_TIMEOUT.
+	 ***************************************************************/
+	private boolean isStuck() {
+		long started = writeStarted;
+
+		return started != 0 &&
+				System.currentTimeMillis() - started > WRITE_TIMEOUT;
+	}
+
+	/****************************************************************
+	 * Counts a query read on the connection as one which will never
+	 * be replied to, such as one which could not be parsed.
+	 ***************************************************************/
+	public void dropped() {
+		owed.decrementAndGet();
+	}
+
+	/****************************************************************
+	 * @return the address of the client.
+	 ***************************************************************/
+	public InetAddress getAddress() {
+		return socket.getInetAddress();
+	}
+
+	/****************************************************************
+	 * @return the port of the client.
+	 ***************************************************************/
+	public int getPort() {
+		return socket.getPort();
+	}
+
+	/****************************************************************
+	 * Closes the connection, which ends a write stuck on it, and
+	 * stops the writer. Replies still queued are dropped.
+	 ***************************************************************/
+	private void close() {
+		synchronized (this) {
+			if (closed) return;
+
+			closed = true;
+		}
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("Error closing client connection");
+		}
+
+		replies.clear();
+		replies.offer(STOP);
+		listener.closed(this);
+	}
+}
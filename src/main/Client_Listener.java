@@ -0,0 +1,183 @@
+package main;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/********************************************************************
+ * Client Listener
+ *
+ * Owns the sockets clients send their queries to, over UDP and TCP
+ * on the same port. The listener does nothing but receive queries
+ * and pass them to the resolver, and it never waits on an upstream
+ * server, so a slow resolution cannot cause a client query to be
+ * dropped. Each TCP connection is read by a thread of its own.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Client_Listener {
+
+	/** Size of the buffer queries are read into: the largest UDP
+	 * payload, so no query is ever cut short. */
+	private final int BUFFER_SIZE = 65535;
+
+	/** Most TCP connections open at once. */
+	private final int MAX_CONNECTIONS = 64;
+
+	/** Size requested for the socket's receive buffer, so bursts of
+	 * queries queue in the kernel rather than being dropped. */
+	private final int RECEIVE_BUFFER = 1 << 20;
+
+	/** The socket clients send queries to. */
+	private DatagramSocket socket;
+
+	/** The socket clients open TCP connections to. */
+	private ServerSocket server;
+
+	/** Number of TCP connections open. */
+	private AtomicInteger connections;
+
+	/** The resolver queries are passed to. */
+	private DNS_Resolver resolver;
+
+	/****************************************************************
+	 * Constructor for Client_Listener. Binds the client sockets to
+	 * the given port.
+	 *
+	 * @param port the port to listen on.
+	 * @param resolver the resolver queries are passed to.
+	 * @throws SocketException if there is an issue creating the
+	 * socket. Likely the port is already in use.
+	 ***************************************************************/
+	public Client_Listener(int port, DNS_Resolver resolver)
+			throws SocketException {
+		this.resolver = resolver;
+
+		connections = new AtomicInteger();
+
+		try {
+			socket = new DatagramSocket(port);
+
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress(port));
+		} catch (IOException be) {
+			String message = "Problem hosting server on port " + port;
+			message += "\nIs there another instance of this server?";
+			throw new SocketException(message);
+		}
+
+		socket.setReceiveBufferSize(RECEIVE_BUFFER);
+	}
+
+	/****************************************************************
+	 * Listens for queries until the socket is closed, passing each
+	 * one to the resolver. TCP connections are accepted on a thread
+	 * of their own.
+	 ***************************************************************/
+	public void listen() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "tcp-listener");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		byte[] recvData = new byte[BUFFER_SIZE];
+
+		while (!socket.isClosed()) {
+			DatagramPacket recvPacket =
+					new DatagramPacket(recvData, recvData.length);
+
+			/* Restarts the loop and prints error message if
+			 * there is an error receiving the packet. */
+			try {
+				socket.receive(recvPacket);
+			} catch (IOException e) {
+				String message = "Error receiving packet";
+				System.err.println(message);
+				continue;
+			}
+
+			int length = recvPacket.getLength();
+
+			resolver.dispatch(recvPacket.getAddress(), recvPacket.getPort(),
+					Arrays.copyOf(recvData, length), length);
+		}
+	}
+
+	/****************************************************************
+	 * Accepts TCP connections until the socket is closed, starting a
+	 * thread to read each one. Connections over the limit are closed
+	 * straight away.
+	 ***************************************************************/
+	private void accept() {
+		while (!server.isClosed()) {
+			Socket client;
+
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				System.err.println("Error accepting connection");
+				continue;
+			}
+
+			try {
+				if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+					connections.decrementAndGet();
+					client.close();
+					continue;
+				}
+
+				Client_Connection connection =
+						new Client_Connection(client, this, resolver);
+
+				Thread reader = new Thread(connection, "tcp-client");
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				connections.decrementAndGet();
+				System.err.println("Error opening connection from: " +
+						client.getInetAddress().getHostAddress());
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Counts a TCP connection as closed.
+	 *
+	 * @param connection the connection which was closed.
+	 ***************************************************************/
+	void closed(Client_Connection connection) {
+		connections.decrementAndGet();
+	}
+
+	/****************************************************************
+	 * Sends the given bytes to a client.
+	 *
+	 * @param data the bytes to be sent.
+	 * @param length the number of bytes to send.
+	 * @param ip the address of the client.
+	 * @param clientPort the port of the client.
+	 * @throws IOException if there is an error sending the packet.
+	 ***************************************************************/
+	public void send(byte[] data, int length, InetAddress ip,
+			int clientPort) throws IOException {
+		DatagramPacket sendPacket =
+				new DatagramPacket(data, length, ip, clientPort);
+
+		socket.send(sendPacket);
+	}
+}
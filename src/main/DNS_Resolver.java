@@ -5,13 +5,32 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.*;
 
+import cache.Answer_Key;
 import cache.Cache;
+import cache.Infra_Cache;
+import cache.Zone_Cut;
 import packet.DNS_Answer;
 import packet.DNS_Header;
+import packet.DNS_Name;
 import packet.DNS_Packet;
+import packet.DNS_Question;
 
 
 /********************************************************************
@@ -29,11 +48,66 @@ public class DNS_Resolver {
 	/** The port to query a DNS is  */
 	final int DNS_PORT = 53;
 	
+	/** The value for the Internet class. */
+	private final int IN_CLASS = 1;
+	
 	/** Path to the root hints file. */
 	private final String PATH = "src/packet/dns.root";
 	
-	/** Time out in seconds */
-	private final int TIMEOUT = 3500;
+	/** Number of threads that move resolutions on a step. No thread
+	 * waits on an upstream server, so a few keep many resolutions
+	 * going at once. */
+	private final int WORKERS = 
+			Math.max(4, Runtime.getRuntime().availableProcessors());
+	
+	/** Number of queries and replies that can wait for a free worker. */
+	private final int QUEUE_SIZE = 4096;
+	
+	/** Most queries sent upstream to resolve one question. */
+	private final int MAX_QUERIES = 32;
+	
+	/** Most CNAMEs followed to resolve one question. */
+	private final int MAX_CNAME = 8;
+	
+	/** Deepest chain of name server lookups started for one query. */
+	private final int MAX_DEPTH = 4;
+	
+	/** Most name servers of a referral resolved in parallel. */
+	private final int MAX_GLUELESS = 4;
+	
+	/** Time in milliseconds to wait for any name server address of a
+	 * referral without glue. */
+	private final int GLUELESS_TIMEOUT = 5000;
+	
+	/** Time in milliseconds to wait for a reply over TCP, which may
+	 * include setting up the connection. */
+	private final int TCP_TIMEOUT = 4000;
+	
+	/** Number of cache refreshes that can run at the same time. */
+	private final int PREFETCHERS = 64;
+	
+	/** Most entries the cache may hold. */
+	private final int CACHE_ENTRIES = Cache.DEFAULT_MAX_ENTRIES;
+	
+	/** Most estimated bytes of memory the cache may use. */
+	private final long CACHE_BYTES = Cache.DEFAULT_MAX_BYTES;
+	
+	/** Time in seconds expired answers may still be served. */
+	private final long STALE_WINDOW = Cache.DEFAULT_STALE_WINDOW;
+	
+	/** Path of the file the cache is saved to and loaded from. */
+	private final String SNAPSHOT_PATH = "cache.snapshot";
+	
+	/** Time in seconds between saves of the cache. */
+	private final int SNAPSHOT_INTERVAL = 300;
+	
+	/** Most time in seconds the last save waits for a periodic save
+	 * under way to end. */
+	private final int SNAPSHOT_WAIT = 10;
+	
+	/** Time in milliseconds a client waits for a fresh answer before
+	 * it is sent a stale one, if there is one. */
+	private final int CLIENT_DEADLINE = 1800;
 	
 	/** The port used to host this server */
 	private int SERVER_PORT;
@@ -41,33 +115,42 @@ public class DNS_Resolver {
 	/** The address of this resolver. */
 	private InetAddress SERVER_IP;
 	
-	/** Te socket of this server. */
-	private DatagramSocket serverSocket;
+	/** Listens for queries sent by clients. */
+	private Client_Listener listener;
 		
 	/** List of all the root IPs */
 	private ArrayList<InetAddress> rootIPs;
 	
-	/** The IP of the person who sent the original query. */
-	private InetAddress initialIP;
+	/** This resolver's cache. Shared by every worker. */
+	private Cache cache;
 	
-	/** The port of the person who sent the original query. */
-	private int initialPort;
+	/** Channel used for every query sent to an upstream server. */
+	private Upstream_Channel upstream;
 	
-	/** The packet created from the initial query. */
-	private DNS_Packet initialPacket;
-		
-	/** The name of the initial query. */
-	private String initialName;
+	/** Round trip times of upstream servers, used to pick which 
+	 * server to try first. */
+	private Server_Selector selector;
 	
-	/** Tells if the recursive query method is in the process of
-	 * resolving a CNAME */
-	private boolean resolvingCNAME;
+	/** Upstream servers which have recently failed, skipped until
+	 * they are probed again. */
+	private Infra_Cache infra;
 	
-	/** The list of answers resolved for the CNAME */
-	private ArrayList<DNS_Answer> cnameAnswers;
+	/** Pool of workers that handle client queries and the replies of
+	 * upstream servers. */
+	private ThreadPoolExecutor workers;
 	
-	/** This resolver's cache. */
-	private Cache cache;
+	/** Number of cache refreshes in progress. */
+	private AtomicInteger prefetching;
+	
+	/** Runs retransmission timeouts, hedges and client deadlines. */
+	private ScheduledThreadPoolExecutor timers;
+	
+	/** Saves the cache to disk every so often. */
+	private ScheduledThreadPoolExecutor snapshots;
+	
+	/** Queries waiting on a query for the same question which is
+	 * already being resolved, indexed by the question. */
+	private HashMap<Answer_Key, ArrayList<Resolution_Context>> inFlight;
 		
 	/****************************************************************
 	 * Constructor for DNS_Resolver. Sets the port.
@@ -79,13 +162,88 @@ public class DNS_Resolver {
 		SERVER_PORT = port;
 		setLocalIP();
 		initializeServer();
+		upstream = new Upstream_Channel();
+		selector = new Server_Selector();
+		infra = new Infra_Cache();
 		rootIPs = readRootFile(PATH);
 		
-		cache = new Cache();
+		cache = new Cache(CACHE_ENTRIES, CACHE_BYTES, STALE_WINDOW);
+		inFlight = new HashMap<Answer_Key, ArrayList<Resolution_Context>>();
+		
+		workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60, 
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE));
+		workers.allowCoreThreadTimeOut(true);
+		
+		prefetching = new AtomicInteger();
+		
+		timers = new ScheduledThreadPoolExecutor(1);
+		timers.setRemoveOnCancelPolicy(true);
+		
+		startSnapshots();
 		
 		welcomeMessage();
 	}
 	
+	/****************************************************************
+	 * Loads the cache saved by the last run, if there is one, then
+	 * saves the cache every SNAPSHOT_INTERVAL seconds and when the 
+	 * resolver shuts down, so a restart begins with a warm cache. The
+	 * last save waits for any periodic one under way to end, since
+	 * both write the same file.
+	 ***************************************************************/
+	private void startSnapshots() {
+		long currentTime = System.currentTimeMillis() / 1000;
+		
+		try {
+			int loaded = cache.load(SNAPSHOT_PATH, currentTime);
+			System.out.println("Loaded " + loaded + " cache entries");
+		} catch (NoSuchFileException nf) {
+			// First run, nothing to load.
+		} catch (IOException e) {
+			System.err.println("Unable to load cache: " + e.getMessage());
+		}
+		
+		Runnable save = new Runnable() {
+			public void run() {
+				saveSnapshot();
+			}
+		};
+		
+		snapshots = new ScheduledThreadPoolExecutor(1);
+		snapshots.scheduleWithFixedDelay(save, SNAPSHOT_INTERVAL, 
+				SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				snapshots.shutdown();
+
+				try {
+					if (!snapshots.awaitTermination(SNAPSHOT_WAIT,
+							TimeUnit.SECONDS)) {
+						System.err.println("Cache save still running, " +
+								"skipping last save");
+						return;
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				saveSnapshot();
+			}
+		}));
+	}
+	
+	/****************************************************************
+	 * Saves the cache to SNAPSHOT_PATH.
+	 ***************************************************************/
+	private void saveSnapshot() {
+		try {
+			cache.save(SNAPSHOT_PATH);
+		} catch (IOException e) {
+			System.err.println("Unable to save cache: " + e.getMessage());
+		}
+	}
+	
 	/****************************************************************
 	 * Adds message to UnkownHostException if thrown.
 	 * 
@@ -102,22 +260,15 @@ public class DNS_Resolver {
 	}
 	
 	/****************************************************************
-	 * Initializes the Server's socket, binding it to the
-	 * port given to the constructor. 
+	 * Initializes the Server's client listener, binding it to the
+	 * port given to the constructor. Upstream queries use their own
+	 * channel, so nothing but client queries arrive on this port.
 	 * 
 	 * @throws SocketException if there is an issue creating
-	 * the serverSocket. Likely the port is already in use.
+	 * the listener's socket. Likely the port is already in use.
 	 ***************************************************************/
 	private void initializeServer() throws SocketException {
-		try {
-			serverSocket = new DatagramSocket(SERVER_PORT);
-		} catch (SocketException be) {
-			String message = "Problem hosting server on port " + SERVER_PORT;
-			message += "\nIs there another instance of this server?";
-			throw new SocketException(message);
-		}
-		
-		serverSocket.setSoTimeout(TIMEOUT);
+		listener = new Client_Listener(SERVER_PORT, this);
 	}
 	
 	/****************************************************************
@@ -168,89 +319,55 @@ public class DNS_Resolver {
 	}
 	
 	/****************************************************************
-	 * Sends the bytes from the given DNS_PACKET to the given 
-	 * InetAddress. 
+	 * Sends a reply to the client that sent the query being resolved
+	 * and keeps it, so that identical queries waiting on this one 
+	 * can be sent the same reply.
 	 * 
-	 * @param packet contains the bytes to be sent.
-	 * @param ip the IPv4 address to send the data to.
+	 * @param ctx the query being answered.
+	 * @param data bytes of the reply, with the query's ID.
+	 * @param length number of bytes to send.
 	 * @throws IOException if there is an error sending the packet.
 	 ***************************************************************/
-	private void sendMessage(DNS_Packet packet, InetAddress ip, int port) 
-			throws IOException {
-		byte[] sendData = packet.getBytes();
-		DatagramPacket sendPacket = new DatagramPacket(sendData,
-				packet.getLength(), ip, port);
-		
-		serverSocket.send(sendPacket);
-	}
-
-	/****************************************************************
-	 * Creates a DatagramPacket for the server to use to
-	 * receive data. Once the data is received, the packet
-	 * is returned. 
-	 * 
-	 * @return packet containing received data.
-	 * @throws IOException if something goes wrong in receiving.
-	 * @throws SocketTimeoutException if a packet is not received 
-	 * before the specified timeout.
-	 ***************************************************************/
-	private DatagramPacket receiveMessage() throws IOException, 
-		SocketTimeoutException{
-				
-		byte[] recvData = new byte[1024];
+	private void sendMessage(Resolution_Context ctx, byte[] data, 
+			int length) throws IOException {
+		ctx.setReply(Arrays.copyOf(data, length));
 		
-		DatagramPacket recvPacket = 
-				new DatagramPacket(recvData,recvData.length);
+		if (!ctx.hasClient() || !ctx.claimReply()) return;
 		
-		serverSocket.receive(recvPacket);
-
-		return recvPacket;
+		sendToClient(ctx, data, length);
 	}
 	
 	/****************************************************************
-	 * Receive method that handles retries and only accepts packets
-	 * from the given IP address.
+	 * Sends a reply to the client the way its query came: on its TCP
+	 * connection, or over UDP. The reply's question is written as
+	 * the client sent it. A reply too large for the client to take
+	 * over UDP is cut down to its question with the TC flag set, so
+	 * the client asks again over TCP.
 	 * 
-	 * @param attempts number of attempts to make if failed.
-	 * @param addr IPv4 of the expected sender.
-	 * @param packet packet to send.
-	 * @param port port to send on.
-	 * @return the UDP packet that was received
-	 * @throws IOException if there was a problem with receiving.
+	 * @param ctx the query being answered.
+	 * @param data bytes of the reply, with the query's ID.
+	 * @param length number of bytes to send.
+	 * @throws IOException if there is an error sending the packet.
 	 ***************************************************************/
-	private DatagramPacket receiveMessage(int attempts, InetAddress addr, 
-			DNS_Packet packet, int port) throws IOException {
-
-		DatagramPacket recvPacket = null;
+	private void sendToClient(Resolution_Context ctx, byte[] data,
+			int length) throws IOException {
 		
-		for (int i = 0; i < attempts; i++) {
-
-			if (i > 0) {
-				String message = "Retrying receive from: ";
-				System.err.println(message + addr.getHostAddress());
-				sendMessage(packet, addr, port);
-			}
-			
-			try {
-				recvPacket = receiveMessage();
-				
-				InetAddress recvAddr = recvPacket.getAddress();
-				
-				/* Checks if server receives from another sender. */
-				if (!recvAddr.getHostAddress().equals(addr.getHostAddress())) {
-					System.err.println("Ignoring packet from: " + 
-							recvAddr.getHostAddress());
-					i--;
-					recvPacket = null;
-					continue;
-				}
-				
-				break;
-			} catch (SocketTimeoutException to) {
-				continue;
-			}
+		DNS_Packet.echoQuestion(ctx.getInitialPacket().getBytes(), data);
+		
+		if (ctx.getConnection() != null) {
+			ctx.getConnection().send(data, length);
+			return;
 		}
-		return recvPacket;
+		
+		if (length > ctx.getInitialPacket().getUDPSize()) {
+			System.out.println("-Truncating reply for: " + 
+					ctx.getInitialName() + "-");
+			data = DNS_Packet.truncate(data, length);
+			length = data.length;
+		}
+		
+		listener.send(data, length, ctx.getInitialIP(), 
+				ctx.getInitialPort());
 	}
 	
 	/****************************************************************
@@ -284,241 +401,1310 @@ public class DNS_Resolver {
 	}
 	
 	/****************************************************************
-	 * Sends the given packet containing the final answers to the 
-	 * address which the initial query was received from.
-	 * 
+	 * Sends the given packet containing the final answers to the
+	 * address which the initial query was received from. Answers
+	 * are cached as they are received, not here, so that each link
+	 * of a CNAME chain is cached on its own.
+	 *
+	 * @param ctx the query being answered.
 	 * @param dnsPacket packet containing the answers to send.
 	 * @throws IOException if there was an error sending the packet.
 	 ***************************************************************/
-	private void sendAnswers(DNS_Packet dnsPacket) throws IOException {
+	private void sendAnswers(Resolution_Context ctx, DNS_Packet dnsPacket)
+			throws IOException {
+		String[] answers = dnsPacket.getFinalAnswers();
+
 		System.out.println("--Answers--");
-		for (String addr : dnsPacket.getFinalAnswers()) {
-			
+		for (int i = 0; answers != null && i < answers.length; i++) {
+			String addr = answers[i];
+
 			/* Checks for non A type */
 			if (addr.isEmpty()) {
 				addr = "<NON A TYPE>";
 			}
-			
+
 			System.out.println("->  " + addr);
 		}
+
+		/* Cached packets are shared between workers, so the ID is 
+		 * written into a copy of the bytes. */
+		byte[] copy = dnsPacket.getBytes().clone();
+		DNS_Packet reply = new DNS_Packet(copy, dnsPacket.getLength());
+		reply.setID(ctx.getInitialPacket().getBytes());
 		
-		/* Add to cache */
-		long currentTime = System.currentTimeMillis() / 1000;
-		cache.addAnswer(dnsPacket, currentTime);
-						
-		dnsPacket.setID(initialPacket.getBytes());
-		
-		sendMessage(dnsPacket, initialIP, initialPort);
+		sendMessage(ctx, reply.getBytes(), reply.getLength());
 	}
 	
 	/****************************************************************
 	 * Resolver starts listening for UDP packets with DNS queries.
+	 * Each query is handed to a worker so that a slow resolution
+	 * does not hold up the queries received after it.
 	 ***************************************************************/
 	public void begin() {
-		DatagramPacket recvPacket = null;
-				
-		/* Once a packet is found it will recursively loop until it
-		 * retrieves in answer or an error. Then, the while loops will
-		 * start listing for more queries. */
-		while (true) {
-						
-			/* Starts listening for data sent to the server.
-			 * Restarts the loops and prints error message if
-			 * there is an error receiving the packet. */
-			try {
-				recvPacket = receiveMessage();
-			} catch (SocketTimeoutException to) {
-				
-				continue;
-			} catch (IOException e) {
-				String message = "Error receiving packet";
-				System.err.println(message);
-				continue;
-			}
-			
-			initialIP = recvPacket.getAddress();
-			initialPort = recvPacket.getPort();
-			
-			resolvingCNAME = false;
-			
-			DNS_Packet dnsPacket = new DNS_Packet(
-					recvPacket.getData(), recvPacket.getLength());
-			
-			DNS_Header header = dnsPacket.getHeader();
-			int rcode = header.getRCODE();
-			
-			// Print separator
-			String s = new String(new char[65]).replace("\0", "-");
-			System.out.println("\n" + s);
-			
-			// Prints out Sender ID
-			System.out.println(">> Received query from: " + 
-					header.getID() + " <<");
-			
-			// Prints out name(s) being queried.
-			initialName = dnsPacket.getNames();
-			System.out.println("Question: " + initialName);
-			
-			// Prints out header information
-			System.out.println(header);
-			
-			// Print separator
-			System.out.println(s);
+		listener.listen();
+	}
+	
+	/****************************************************************
+	 * Hands a query received by the listener to a worker.
+	 * 
+	 * @param ip address the query was received from.
+	 * @param port port the query was received from.
+	 * @param data bytes of the query.
+	 * @param length number of bytes used in the data array.
+	 ***************************************************************/
+	void dispatch(final InetAddress ip, final int port, final byte[] data,
+			final int length) {
 		
-			/* Checks for error */
-			boolean error = checkError(rcode, dnsPacket.getNames());
-			if (error) continue;
-			
-			// Flips the RD bit
-			header.setRecursionDesired(false);
-						
-			initialPacket = dnsPacket;
-			
-			try {
-				recursiveQuery(dnsPacket);
-			} catch (IndexOutOfBoundsException iob) {
-				String message = "No response from server";
-				System.err.println(message);
-			} catch (Exception e) {
-				String message = "Error when attempting to contact " + 
-						"DNS server";
-				System.err.println(message);
-				continue;
-			}
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					handleQuery(ip, port, null, data, length);
+				}
+			});
+		} catch (RejectedExecutionException re) {
+			System.err.println("Too many queries, dropping query from: " 
+					+ ip.getHostAddress());
 		}
 	}
 	
 	/****************************************************************
-	 * Checks cache for the given packet, then queries the cached IP
-	 * or root DNS.
+	 * Hands a query received on a client's TCP connection to a 
+	 * worker. The reply is sent back on the same connection.
 	 * 
-	 * @param dnsPacket packet containing query
-	 * @throws Exception if no servers could be reached or if there
-	 * is any type of sending or receiving error.
+	 * @param connection the connection the query was received on.
+	 * @param data bytes of the query.
+	 * @param length number of bytes used in the data array.
 	 ***************************************************************/
-	private void recursiveQuery(DNS_Packet dnsPacket) throws Exception {
+	void dispatch(final Client_Connection connection, final byte[] data,
+			final int length) {
 		
-		/* Check for answers */
-		long currentTime = System.currentTimeMillis() / 1000;
-		DNS_Packet answPacket = cache.findAnswer(initialName, currentTime);
-		if (answPacket != null) {
-			
-			System.out.println("-Cached answer for: " + initialName + "-");
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					handleQuery(connection.getAddress(), 
+							connection.getPort(), connection, data, length);
+				}
+			});
+		} catch (RejectedExecutionException re) {
+			System.err.println("Too many queries, dropping query from: " 
+					+ connection.getAddress().getHostAddress());
+			connection.dropped();
+		}
+	}
+	
+	/****************************************************************
+	 * Resolves a single query received from a client. Runs on one of
+	 * the resolver's workers.
+	 * 
+	 * @param ip address the query was received from.
+	 * @param port port the query was received from.
+	 * @param connection the TCP connection the query was received on,
+	 * or null if it came over UDP.
+	 * @param data bytes of the query.
+	 * @param length number of bytes used in the data array.
+	 ***************************************************************/
+	private void handleQuery(InetAddress ip, int port, 
+			Client_Connection connection, byte[] data, int length) {
+		
+		DNS_Packet dnsPacket = null;
+		
+		/* Drops queries which cannot be parsed. */
+		try {
+			dnsPacket = new DNS_Packet(data, length);
+		} catch (RuntimeException re) {
+			System.err.println("Malformed query from: " + 
+					ip.getHostAddress());
 			
-			sendAnswers(answPacket);
+			if (connection != null) connection.dropped();
 			return;
 		}
 		
-		/* Check cache */
-		ArrayList<InetAddress> cachedIps = 
-				cache.findName(initialName, currentTime);
+		DNS_Header header = dnsPacket.getHeader();
+		int rcode = header.getRCODE();
 		
-		if (!cachedIps.isEmpty()) {
-			String ip = cachedIps.get(0).getHostAddress();
-			System.out.println("-Cache entry for: " + ip + "-");
-			recursiveQuery(dnsPacket, 0, cachedIps);	
+		/* Answers anything but a query with a single question with a
+		 * format error. */
+		if (header.isResponse() || header.getQDCOUNT() != 1) {
+			System.err.println("Error in DNS query. RCODE: " + 
+					DNS_Header.FORMAT_ERROR);
+			sendError(ip, port, connection, dnsPacket, 
+					DNS_Header.FORMAT_ERROR);
 			return;
 		}
-				
-		System.out.println("-Forwarding query to Root DNS-");
-		recursiveQuery(dnsPacket, 0, rootIPs);	
+		
+		Resolution_Context ctx = 
+				new Resolution_Context(ip, port, dnsPacket);
+		ctx.setConnection(connection);
+		
+		// Print separator
+		String s = new String(new char[65]).replace("\0", "-");
+		String message = "\n" + s;
+		
+		// Prints out Sender ID
+		message += "\n>> Received query from: " + header.getID() + " <<";
+		
+		// Prints out name(s) being queried.
+		message += "\nQuestion: " + ctx.getInitialName();
+		
+		// Prints out header information
+		message += "\n" + header;
+		
+		// Print separator
+		message += "\n" + s;
+		System.out.println(message);
+	
+		/* Checks for error */
+		boolean error = checkError(rcode, dnsPacket.getNames());
+		if (error) {
+			sendError(ip, port, connection, dnsPacket, 
+					DNS_Header.FORMAT_ERROR);
+			return;
+		}
+		
+		// Flips the RD bit
+		header.setRecursionDesired(false);
+		
+		try {
+			resolve(ctx, dnsPacket);
+		} catch (IOException e) {
+			System.err.println("Error sending reply to: " + 
+					ip.getHostAddress());
+		}
 	}
 	
 	/****************************************************************
-	 * Recursively sends query to the IPs given in the array, moving 
-	 * to the next index when the former fails.
+	 * Sends a client an error reply to a query which is not resolved.
 	 * 
-	 * @param dnsPacket packet containing query.
-	 * @param index current index in IP array to try.
-	 * @param ipArr array list of IPs for the next hop.
-	 * @throws Exception if no servers could be reached or if there
-	 * is any type of sending or receiving error.
+	 * @param ip address the query was received from.
+	 * @param port port the query was received from.
+	 * @param connection the TCP connection the query was received on,
+	 * or null if it came over UDP.
+	 * @param query the query.
+	 * @param rcode the RCODE of the reply.
 	 ***************************************************************/
-	private void recursiveQuery(DNS_Packet dnsPacket, int index,
-			ArrayList<InetAddress> ipArr) throws Exception {
+	private void sendError(InetAddress ip, int port, 
+			Client_Connection connection, DNS_Packet query, int rcode) {
 		
-		DNS_Header header = dnsPacket.getHeader();
+		byte[] reply = DNS_Packet.errorReply(query.getBytes(), 
+				query.getLength(), rcode);
 		
-		/* If there is an answer in the packet. */
-		if (header.getANCOUNT() > 0) {
-			
-			String cname = dnsPacket.getCNAME();
-			
-			/* Checks if the answer contains a CNAME indicating it
-			 * needs to be resolved further. */
-			if (!cname.isEmpty()) {
-				System.out.println("-Resolving CNAME: " + cname + "-\n");
-				
-				resolvingCNAME = true;
-				initialPacket.setQuestionName(cname);
-				recursiveQuery(initialPacket);
-				
-				for (DNS_Answer answ : cnameAnswers) {
-					dnsPacket.addAnswer(answ);
-				}
-								
-				sendAnswers(dnsPacket);
-				return;
-			}
-			
-			/* Checks if this is the last stop in resolving a CNAME */
-			if (resolvingCNAME) {
-				cnameAnswers = dnsPacket.getAnswers();
-				return;
-			}
-			
-			sendAnswers(dnsPacket);
-			
-		/* If there is no answer in the packet. */
-		} else {	
-			
-			/* Checks for an error code. */
-			if (checkError(header.getRCODE(), initialName)) {
-				sendMessage(dnsPacket, initialIP, initialPort);
-				return;
+		try {
+			if (connection != null) {
+				connection.send(reply, reply.length);
+			} else {
+				listener.send(reply, reply.length, ip, port);
 			}
-			
-			/* Checks for an empty list of IPs. */
-			if (ipArr.isEmpty()) {
-				String message = "No A type responses given";
-				System.err.println(message);
-				return;
+		} catch (IOException e) {
+			System.err.println("Error sending reply to: " + 
+					ip.getHostAddress());
+		}
+	}
+	
+	/****************************************************************
+	 * Answers a query from the cache if possible, starting a refresh
+	 * of the answer if it is in regular use and about to expire.
+	 * Otherwise the query is resolved, unless an identical query is
+	 * already being resolved, in which case it waits for that
+	 * query's reply. Every waiting query is sent the reply once it
+	 * arrives, so a burst of queries for one name costs a single
+	 * resolution. If no reply arrives by the client's deadline, or
+	 * resolution fails, an expired answer is sent if there is one,
+	 * while resolution carries on and refreshes the cache.
+	 *
+	 * Returns as soon as resolution has started; the client is
+	 * answered by whichever thread receives the final reply.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket packet containing query
+	 * @throws IOException if a cached answer could not be sent.
+	 ***************************************************************/
+	private void resolve(Resolution_Context ctx, DNS_Packet dnsPacket)
+			throws IOException {
+
+		String initialName = ctx.getInitialName();
+		DNS_Question question = dnsPacket.getQuestions().get(0);
+
+		/* Check for answers */
+		long currentTime = System.currentTimeMillis() / 1000;
+		byte[] reply = cache.findAnswer(question.getQName(),
+				question.getQTYPE(), question.getQCLASS(),
+				dnsPacket.getBytes(), currentTime);
+		if (reply != null) {
+
+			System.out.println("-Cached answer for: " + initialName + "-");
+
+			sendToClient(ctx, reply, reply.length);
+
+			if (cache.claimPrefetch(question.getQName(),
+					question.getQTYPE(), question.getQCLASS(), currentTime)) {
+				prefetch(question);
 			}
-			
-			InetAddress ip = ipArr.get(index);
-			
-			System.out.println("Sending query to: " + ip.getHostAddress());
-			sendMessage(initialPacket, ip, DNS_PORT);
-			
-			DatagramPacket recvPacket = 
-					receiveMessage(2, ip, dnsPacket, DNS_PORT);	
-			
-			/* Checks if the server was unable to receive from the given IP */
-			if (recvPacket == null) {
-				recursiveQuery(dnsPacket, index + 1, ipArr);
-				return;
+			return;
+		}
+
+		final Resolution_Context client = ctx;
+		final ScheduledFuture<?> deadline = scheduleStale(ctx);
+
+		if (resolveShared(ctx, dnsPacket)) {
+			ctx.getFinished().thenRun(new Runnable() {
+				public void run() {
+					if (client.isAnswered()) {
+						deadline.cancel(false);
+					}
+				}
+			});
+		}
+	}
+
+	/****************************************************************
+	 * Arranges for the client to be sent a stale answer if it has
+	 * not been answered by its deadline.
+	 *
+	 * @param ctx the query being resolved.
+	 * @return the scheduled task, which may be cancelled once the
+	 * client has been answered.
+	 ***************************************************************/
+	private ScheduledFuture<?> scheduleStale(final Resolution_Context ctx) {
+		return timers.schedule(new Runnable() {
+			public void run() {
+				sendStale(ctx);
 			}
-			
-			byte[] recvData = recvPacket.getData();
-			
-			dnsPacket = new DNS_Packet(recvData, recvPacket.getLength());
-			header = dnsPacket.getHeader();	
-			
-			System.out.println("Got from " + 
-					recvPacket.getAddress().getHostAddress() + ":");
-			System.out.println(dnsPacket.getHeader());
-			System.out.println();			
-			
-			/* Add to cache */
-			long currentTime = System.currentTimeMillis() / 1000;
-			cache.addPacket(dnsPacket, currentTime);
-			
-			recursiveQuery(dnsPacket, 0, dnsPacket.getResponseIPs());
+		}, CLIENT_DEADLINE, TimeUnit.MILLISECONDS);
+	}
+
+	/****************************************************************
+	 * Sends the client an expired answer from the cache, unless it
+	 * has been answered already or there is no such answer.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void sendStale(Resolution_Context ctx) {
+		if (!ctx.hasClient() || ctx.isAnswered()) return;
+
+		DNS_Packet query = ctx.getInitialPacket();
+		DNS_Question question = query.getQuestions().get(0);
+		long currentTime = System.currentTimeMillis() / 1000;
+
+		byte[] stale = cache.findStale(question.getQName(),
+				question.getQTYPE(), question.getQCLASS(),
+				query.getBytes(), currentTime);
+
+		if (stale == null || !ctx.claimReply()) return;
+
+		System.out.println("-Stale answer for: " +
+				ctx.getInitialName() + "-");
+
+		try {
+			sendToClient(ctx, stale, stale.length);
+		} catch (IOException e) {
+			System.err.println("Error sending stale answer");
 		}
-		
 	}
-	
-	
+
+	/****************************************************************
+	 * Answers a client whose query could not be resolved: with a stale
+	 * answer if there is one, or failing that with a SERVFAIL, so the
+	 * client is not left waiting for a reply which never comes.
+	 *
+	 * @param ctx the query which could not be resolved.
+	 ***************************************************************/
+	private void sendFailure(Resolution_Context ctx) {
+		sendStale(ctx);
+
+		if (!ctx.hasClient() || !ctx.claimReply()) return;
+
+		DNS_Packet query = ctx.getInitialPacket();
+		byte[] reply = DNS_Packet.errorReply(query.getBytes(),
+				query.getLength(), DNS_Header.SERVER_FAILURE);
+
+		try {
+			sendToClient(ctx, reply, reply.length);
+		} catch (IOException e) {
+			System.err.println("Error sending reply to: " +
+					ctx.getInitialIP().getHostAddress());
+		}
+	}
+
+	/****************************************************************
+	 * Starts resolving a query, unless an identical query is already
+	 * being resolved, in which case it waits for that query's reply.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket packet containing query
+	 * @return true if resolution was started, false if the query
+	 * waits on another.
+	 ***************************************************************/
+	private boolean resolveShared(final Resolution_Context ctx,
+			DNS_Packet dnsPacket) {
+
+		String initialName = ctx.getInitialName();
+		DNS_Question question = dnsPacket.getQuestions().get(0);
+
+		final Answer_Key key = new Answer_Key(question.getQName(),
+				question.getQTYPE(), question.getQCLASS());
+
+		synchronized (inFlight) {
+			ArrayList<Resolution_Context> waiting = inFlight.get(key);
+
+			if (waiting != null) {
+				System.out.println("-Waiting on query in flight for: "
+						+ initialName + "-");
+				waiting.add(ctx);
+				return false;
+			}
+
+			inFlight.put(key, new ArrayList<Resolution_Context>());
+		}
+
+		ctx.getFinished().thenRun(new Runnable() {
+			public void run() {
+				ArrayList<Resolution_Context> waiting;
+
+				synchronized (inFlight) {
+					waiting = inFlight.remove(key);
+				}
+
+				if (ctx.getReply() == null) {
+					sendFailure(ctx);
+				}
+
+				sendToWaiting(ctx.getReply(), waiting);
+			}
+		});
+
+		startResolution(ctx);
+		return true;
+	}
+
+	/****************************************************************
+	 * Sends a reply to every query that waited on the same question.
+	 * Each copy is given the ID of the query it answers. If no reply
+	 * was found, each is sent a stale answer if there is one, or
+	 * failing that a SERVFAIL. Each waiting query then finishes, with
+	 * the reply kept for anything waiting on it in turn.
+	 *
+	 * @param reply bytes of the reply, or null if there is none.
+	 * @param waiting the queries that waited for the reply.
+	 ***************************************************************/
+	private void sendToWaiting(byte[] reply,
+			ArrayList<Resolution_Context> waiting) {
+
+		for (Resolution_Context ctx : waiting) {
+			if (reply == null) {
+				sendFailure(ctx);
+				ctx.getFinished().complete(null);
+				continue;
+			}
+
+			byte[] copy = reply.clone();
+			byte[] query = ctx.getInitialPacket().getBytes();
+			copy[0] = query[0];
+			copy[1] = query[1];
+			ctx.setReply(copy);
+
+			if (ctx.hasClient() && ctx.claimReply()) {
+				try {
+					sendToClient(ctx, copy, copy.length);
+				} catch (IOException e) {
+					System.err.println("Error sending reply to: " +
+							ctx.getInitialIP().getHostAddress());
+				}
+			}
+
+			ctx.getFinished().complete(null);
+		}
+	}
+
+	/****************************************************************
+	 * Resolves a question again in the background so that its
+	 * answer is replaced in the cache before it expires. Refreshes
+	 * are dropped if PREFETCHERS are already in progress. Once the
+	 * refresh ends, whether or not it replaced the answer, the answer
+	 * is released so a failed refresh can be tried again.
+	 *
+	 * @param question the question to resolve again.
+	 ***************************************************************/
+	private void prefetch(final DNS_Question question) {
+		String name = question.getName();
+
+		if (prefetching.incrementAndGet() > PREFETCHERS) {
+			prefetching.decrementAndGet();
+			cache.releasePrefetch(question.getQName(),
+					question.getQTYPE(), question.getQCLASS());
+			System.err.println("Too many refreshes, skipping: " + name);
+			return;
+		}
+
+		DNS_Packet query = DNS_Packet.newQuery(question.getQName(),
+				question.getQTYPE(), question.getQCLASS());
+		Resolution_Context ctx = new Resolution_Context(null, 0, query);
+
+		BiConsumer<Void, Throwable> release =
+				new BiConsumer<Void, Throwable>() {
+			public void accept(Void done, Throwable error) {
+				prefetching.decrementAndGet();
+				cache.releasePrefetch(question.getQName(),
+						question.getQTYPE(), question.getQCLASS());
+			}
+		};
+
+		System.out.println("-Refreshing answer for: " + name + "-");
+
+		if (resolveShared(ctx, query)) {
+			ctx.getFinished().whenComplete(release);
+		} else {
+			release.accept(null, null);
+		}
+	}
+
+	/****************************************************************
+	 * Starts the iterative resolution of a query from the closest
+	 * zone cut in the cache. Each step after this one is run when a
+	 * reply or timeout arrives, and ends by sending the next query or
+	 * finishing, so no thread is held while a server is waited for.
+	 *
+	 * Every step takes the context's lock and checks that the event
+	 * belongs to the context's current step, so replies to abandoned
+	 * attempts and timers that fire late are ignored.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void startResolution(Resolution_Context ctx) {
+		synchronized (ctx) {
+			/* Lookups of name servers spend the budget of the query
+			 * waiting on them. */
+			if (ctx.getDepth() == 0) {
+				ctx.setQueriesLeft(MAX_QUERIES);
+			}
+
+			try {
+				continueChain(ctx);
+			} catch (RuntimeException re) {
+				System.err.println("Unable to resolve: " +
+						ctx.getInitialName());
+				finish(ctx);
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Checks cache for the closest zone cut of the name being asked
+	 * about, then queries its servers or the root DNS. A cut whose
+	 * server addresses have expired, or never came as glue, is
+	 * resumed by looking up the names of its servers rather than
+	 * going back to the root. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void findServers(Resolution_Context ctx) {
+		long currentTime = System.currentTimeMillis() / 1000;
+
+		/* Check cache */
+		DNS_Name name = ctx.getQuery().getQuestions().get(0).getQName();
+		Zone_Cut cut = cache.findCut(name, currentTime);
+
+		if (cut != null && !cut.getAddresses().isEmpty()) {
+			ArrayList<InetAddress> cachedIps = cut.getAddresses();
+			String ip = cachedIps.get(0).getHostAddress();
+			System.out.println("-Cache entry for: " + ip + "-");
+			useServers(ctx, cut.getZone(), cachedIps);
+			return;
+		}
+
+		if (cut != null && ctx.getDepth() < MAX_DEPTH) {
+			System.out.println("-Cached name servers for: " +
+					cut.getZone() + "-");
+			lookUpNameServers(ctx, cut.getZone(), cut.getNameServers());
+			return;
+		}
+
+		System.out.println("-Forwarding query to Root DNS-");
+		useServers(ctx, DNS_Name.ROOT, rootIPs);
+	}
+
+	/****************************************************************
+	 * Moves to a new zone cut and queries the fastest of its
+	 * servers, leaving out those held down after failing for the
+	 * zone. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param zone name of the zone cut.
+	 * @param ips addresses of the servers for the zone cut.
+	 ***************************************************************/
+	private void useServers(Resolution_Context ctx, DNS_Name zone,
+			ArrayList<InetAddress> ips) {
+		ArrayList<InetAddress> usable =
+				infra.filter(ips, zone, System.currentTimeMillis());
+
+		if (usable.size() < ips.size()) {
+			System.out.println("-Skipping " + (ips.size() - usable.size()) +
+					" failed server(s) for: " + zone + "-");
+		}
+
+		ctx.setServers(zone, selector.order(usable));
+		ctx.nextStep();
+		sendQuery(ctx);
+	}
+
+	/****************************************************************
+	 * Sends the query to the server being tried, moving past any
+	 * server it cannot be sent to, and sets timers for the server's
+	 * retransmission timeout and, on the first attempt, for hedging
+	 * to the next server. A server which sent a truncated reply is
+	 * asked over TCP and not hedged. A server already hedged to is
+	 * not asked again; the hedge is waited on as its first attempt.
+	 * Earlier attempts are still waited on too. Finishes the
+	 * resolution if every server has been tried or the query budget
+	 * is spent. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void sendQuery(final Resolution_Context ctx) {
+		InetAddress ip;
+		int step;
+
+		while (true) {
+			ip = ctx.getServer();
+
+			if (ip == null) {
+				System.err.println("No response from server");
+				finish(ctx);
+				return;
+			}
+
+			if (ctx.getTries() == 0 && ip.equals(ctx.getHedged())) {
+				System.out.println("Waiting on hedged query to: " +
+						ip.getHostAddress());
+
+				ctx.addTry();
+				ctx.setHedged(null);
+				waitFor(ctx, ip, ctx.nextAttempt());
+				return;
+			}
+
+			if (!ctx.spendQuery()) {
+				System.err.println("Too many queries sent for: " +
+						ctx.getInitialName());
+				finish(ctx);
+				return;
+			}
+
+			if (ctx.getTries() == 0 && ctx.isTCP()) {
+				System.out.println("Sending query over TCP to: " +
+						ip.getHostAddress());
+			} else if (ctx.getTries() == 0) {
+				System.out.println("Sending query to: " +
+						ip.getHostAddress());
+			} else {
+				String message = "Retrying receive from: ";
+				System.err.println(message + ip.getHostAddress());
+			}
+
+			ctx.addTry();
+			step = ctx.nextAttempt();
+
+			try {
+				if (ctx.isTCP()) {
+					listen(ctx, step, ip, true,
+							upstream.sendTCP(ctx.getQuery(), ip, DNS_PORT));
+				} else {
+					listen(ctx, step, ip, false,
+							upstream.send(ctx.getQuery(), ip, DNS_PORT));
+				}
+				break;
+			} catch (IOException e) {
+				System.err.println("Error sending query to: " +
+						ip.getHostAddress());
+				ctx.nextServer();
+			}
+		}
+
+		selector.countQuery();
+
+		final int sent = step;
+		long timeout = waitFor(ctx, ip, sent);
+		long delay = selector.getHedgeDelay(ip);
+
+		/* Hedges to the next server if this one is late. */
+		if (ctx.getTries() == 1 && !ctx.isTCP() && 
+				ctx.getBackup() != null && delay < timeout) {
+			ctx.addPending(timers.schedule(new Runnable() {
+				public void run() {
+					hedge(ctx, sent);
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	/****************************************************************
+	 * Sets the timer for the retransmission timeout of an attempt.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param ip address of the server the attempt is to.
+	 * @param step the step of the attempt.
+	 * @return the timeout in milliseconds.
+	 ***************************************************************/
+	private long waitFor(final Resolution_Context ctx, InetAddress ip,
+			final int step) {
+		long timeout = ctx.isTCP() ? TCP_TIMEOUT : selector.getRTO(ip);
+
+		ctx.addPending(timers.schedule(new Runnable() {
+			public void run() {
+				timedOut(ctx, step);
+			}
+		}, timeout, TimeUnit.MILLISECONDS));
+
+		return timeout;
+	}
+
+	/****************************************************************
+	 * Arranges for a reply from a server to be handled by a worker
+	 * as the next step of the resolution. The server's round trip
+	 * time is recorded as soon as the reply arrives, unless it came
+	 * over TCP, where it may include setting up the connection. A
+	 * reply which could not be parsed is handled as a bad server.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param step the step the query was sent in.
+	 * @param ip address of the server.
+	 * @param tcp true if the query was sent over TCP.
+	 * @param reply future completed with the server's reply.
+	 ***************************************************************/
+	private void listen(final Resolution_Context ctx, final int step,
+			final InetAddress ip, final boolean tcp,
+			CompletableFuture<DNS_Packet> reply) {
+
+		final long start = System.nanoTime();
+		ctx.addPending(reply);
+
+		reply.whenComplete(new BiConsumer<DNS_Packet, Throwable>() {
+			public void accept(DNS_Packet p, Throwable t) {
+				if (p != null && !tcp) {
+					selector.recordRTT(ip, (System.nanoTime() - start) / 1e6);
+				}
+			}
+		});
+
+		reply.whenCompleteAsync(new BiConsumer<DNS_Packet, Throwable>() {
+			public void accept(DNS_Packet p, Throwable t) {
+				if (p != null) {
+					received(ctx, step, ip, tcp, p);
+				} else if (!(t instanceof CancellationException)) {
+					malformed(ctx, step, ip);
+				}
+			}
+		}, workers);
+	}
+
+	/****************************************************************
+	 * Holds a server down for the zone when its reply could not be
+	 * parsed, and moves to the next server if it was the one being
+	 * tried.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param step the step the query was sent in.
+	 * @param ip address of the server that replied.
+	 ***************************************************************/
+	private void malformed(Resolution_Context ctx, int step,
+			InetAddress ip) {
+
+		synchronized (ctx) {
+			if (ctx.isDone() || !ctx.isWaiting(step)) return;
+
+			infra.recordFailure(ip, ctx.getZone(),
+					System.currentTimeMillis());
+
+			/* Keeps waiting on the server being tried if the bad
+			 * reply came from the one hedged to or an earlier one. */
+			if (!ip.equals(ctx.getServer())) return;
+
+			ctx.nextStep();
+			ctx.nextServer();
+			sendQuery(ctx);
+		}
+	}
+
+	/****************************************************************
+	 * Handles a reply from a server, unless the attempts it was one
+	 * of are already over.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param step the step the query was sent in.
+	 * @param ip address of the server that replied.
+	 * @param tcp true if the reply came over TCP.
+	 * @param dnsPacket the reply.
+	 ***************************************************************/
+	private void received(Resolution_Context ctx, int step,
+			InetAddress ip, boolean tcp, DNS_Packet dnsPacket) {
+
+		synchronized (ctx) {
+			if (ctx.isDone() || !ctx.isWaiting(step)) return;
+
+			/* Asks the server which sent a truncated reply again over
+			 * TCP for the whole of it, whichever attempt it replied
+			 * to. */
+			if (dnsPacket.getHeader().isTruncated() && !tcp) {
+				if (!ctx.moveTo(ip)) return;
+
+				System.out.println("-Truncated reply from: " +
+						ip.getHostAddress() + "-");
+
+				ctx.nextStep();
+				ctx.useTCP();
+				sendQuery(ctx);
+				return;
+			}
+
+			boolean usable = checkServer(ctx, ip, dnsPacket);
+
+			/* Keeps waiting on the server being tried if the bad
+			 * reply came from the one hedged to or an earlier one. */
+			if (!usable && !ip.equals(ctx.getServer())) return;
+
+			ctx.nextStep();
+
+			/* Moves on to the next server, unless this was the last
+			 * and has an error to pass on to the client. */
+			if (!usable && (ctx.getBackup() != null ||
+					dnsPacket.getHeader().getRCODE() == DNS_Header.NO_ERROR)) {
+				ctx.nextServer();
+				sendQuery(ctx);
+				return;
+			}
+
+			if (!ip.equals(ctx.getServer())) {
+				System.out.println("Hedged reply from: " +
+						ip.getHostAddress());
+			}
+
+			System.out.println("Got from " + ip.getHostAddress() + ":");
+			System.out.println(dnsPacket.getHeader());
+			System.out.println();
+
+			try {
+				handleReply(ctx, dnsPacket);
+			} catch (Exception e) {
+				String message = "Error when attempting to contact " +
+						"DNS server";
+				System.err.println(message);
+				finish(ctx);
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Records whether a server's reply can be used, and if not,
+	 * holds the server down for the zone being asked about. A reply
+	 * is unusable if the server failed, refused, or does not support
+	 * the query, or if it is lame: it neither answers nor refers the
+	 * query to a zone below the one the server was asked as.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param ip address of the server that replied.
+	 * @param dnsPacket the reply.
+	 * @return true if the reply can be used.
+	 ***************************************************************/
+	private boolean checkServer(Resolution_Context ctx, InetAddress ip,
+			DNS_Packet dnsPacket) {
+
+		DNS_Header header = dnsPacket.getHeader();
+		DNS_Name zone = ctx.getZone();
+		int rcode = header.getRCODE();
+		long now = System.currentTimeMillis();
+
+		if (rcode == DNS_Header.SERVER_FAILURE ||
+				rcode == DNS_Header.NOT_IMPLEMENTED ||
+				rcode == DNS_Header.REFUSED) {
+			System.err.println("Server " + ip.getHostAddress() +
+					" failed with RCODE: " + rcode);
+			infra.recordFailure(ip, zone, now);
+			return false;
+		}
+
+		if (rcode == DNS_Header.NO_ERROR && header.getANCOUNT() == 0 &&
+				!dnsPacket.isNegative()) {
+
+			DNS_Name name = ctx.getQuery().getQuestions().get(0).getQName();
+			ArrayList<DNS_Answer> nsTypes = dnsPacket.getReferral(zone, name);
+			DNS_Name cut = nsTypes.isEmpty() ? null :
+					nsTypes.get(0).getOwner();
+
+			if (cut == null || cut.equals(zone)) {
+				System.err.println("Lame server " + ip.getHostAddress() +
+						" for: " + zone);
+				infra.recordLame(ip, zone, now);
+				return false;
+			}
+		}
+
+		infra.recordSuccess(ip, zone);
+		return true;
+	}
+
+	/****************************************************************
+	 * Retries the server being tried when an attempt times out, or
+	 * moves to the next server once it has had all of its attempts,
+	 * holding it down for the zone.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param step the step the attempt was made in.
+	 ***************************************************************/
+	private void timedOut(Resolution_Context ctx, int step) {
+		synchronized (ctx) {
+			if (ctx.isDone() || step != ctx.getStep()) return;
+
+			InetAddress ip = ctx.getServer();
+
+			if (!ctx.isTCP()) {
+				selector.recordTimeout(ip);
+			}
+
+			if (ctx.getTries() >= selector.getAttempts(ip)) {
+				infra.recordFailure(ip, ctx.getZone(),
+						System.currentTimeMillis());
+				ctx.nextServer();
+			}
+
+			sendQuery(ctx);
+		}
+	}
+
+	/****************************************************************
+	 * Sends the query to the next server as well when the server
+	 * being tried is late, if a hedge is allowed. Whichever reply
+	 * comes first is used.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param step the step the first attempt was made in.
+	 ***************************************************************/
+	private void hedge(Resolution_Context ctx, int step) {
+		synchronized (ctx) {
+			if (ctx.isDone() || step != ctx.getStep()) return;
+
+			InetAddress backup = ctx.getBackup();
+
+			if (backup == null || !selector.claimHedge() || !ctx.spendQuery()) return;
+
+			System.out.println("Hedging query to: " +
+					backup.getHostAddress());
+
+			try {
+				listen(ctx, step, backup, false,
+						upstream.send(ctx.getQuery(), backup, DNS_PORT));
+				ctx.setHedged(backup);
+			} catch (IOException e) {
+				System.err.println("Error sending query to: " +
+						backup.getHostAddress());
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Moves the resolution on according to a server's reply: sends
+	 * the answer, follows a CNAME, or follows a referral to the next
+	 * zone cut. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket the reply.
+	 * @throws IOException if there was an error sending the reply.
+	 ***************************************************************/
+	private void handleReply(Resolution_Context ctx, DNS_Packet dnsPacket)
+			throws IOException {
+
+		DNS_Header header = dnsPacket.getHeader();
+		long currentTime = System.currentTimeMillis() / 1000;
+
+		/* If there is an answer in the packet. */
+		if (header.getANCOUNT() > 0) {
+
+			/* Add to cache */
+			cache.addAnswer(dnsPacket, currentTime);
+
+			DNS_Question question = dnsPacket.getQuestions().get(0);
+			DNS_Name end = dnsPacket.getChainEnd();
+
+			/* Checks if the answer ends in a CNAME indicating it
+			 * needs to be resolved further. */
+			if (question.getQTYPE() != DNS_Answer.CNAME_TYPE &&
+					!end.equals(question.getQName()) &&
+					!dnsPacket.hasAnswer(end, question.getQTYPE())) {
+				followCNAME(ctx, dnsPacket, end);
+				return;
+			}
+
+			/* Checks if this is the last stop in resolving a CNAME */
+			if (ctx.isResolvingCNAME()) {
+				sendChain(ctx, dnsPacket);
+			} else {
+				sendAnswers(ctx, dnsPacket);
+			}
+
+			finish(ctx);
+			return;
+		}
+
+		/* Caches and forwards NXDOMAIN and NODATA answers. */
+		if (dnsPacket.isNegative()) {
+			checkError(header.getRCODE(), ctx.getQueryName());
+			cache.addNegative(dnsPacket, currentTime);
+
+			sendFinal(ctx, dnsPacket);
+			return;
+		}
+
+		/* Checks for an error code. */
+		if (checkError(header.getRCODE(), ctx.getQueryName())) {
+			sendFinal(ctx, dnsPacket);
+			return;
+		}
+
+		/* Caches the referral, leaving out NS records for zones the
+		 * server has no say over. */
+		DNS_Name name = ctx.getQuery().getQuestions().get(0).getQName();
+		ArrayList<DNS_Answer> nsTypes =
+				dnsPacket.getReferral(ctx.getZone(), name);
+		cache.addPacket(dnsPacket, nsTypes, currentTime);
+
+		ArrayList<InetAddress> ips = dnsPacket.getResponseIPs();
+
+		if (!ips.isEmpty() && !nsTypes.isEmpty()) {
+			useServers(ctx, nsTypes.get(0).getOwner(), ips);
+			return;
+		}
+
+		/* Resolves the name servers of a referral without glue. */
+		if (!nsTypes.isEmpty() && ctx.getDepth() < MAX_DEPTH) {
+			ArrayList<DNS_Name> names = new ArrayList<DNS_Name>();
+
+			for (DNS_Answer ns : nsTypes) {
+				names.add(DNS_Name.read(ns.getBytes(), ns.getRDataIndex()));
+			}
+
+			lookUpNameServers(ctx, nsTypes.get(0).getOwner(), names);
+			return;
+		}
+
+		String message = "No A type responses given";
+		System.err.println(message);
+		finish(ctx);
+	}
+
+	/****************************************************************
+	 * Moves resolution on to the name a CNAME chain ends at, keeping
+	 * the links so the whole chain can be sent once its end is
+	 * reached. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket the reply containing the chain.
+	 * @param end the name the chain ends at.
+	 * @throws IOException if there was an error sending the reply.
+	 ***************************************************************/
+	private void followCNAME(Resolution_Context ctx, DNS_Packet dnsPacket,
+			DNS_Name end) throws IOException {
+
+		addLinks(ctx, dnsPacket);
+
+		if (ctx.getCnameCount() >= MAX_CNAME) {
+			System.err.println("CNAME chain too long for: " +
+					ctx.getInitialName());
+			sendChain(ctx, null);
+			finish(ctx);
+			return;
+		}
+
+		System.out.println("-Resolving CNAME: " + end + "-\n");
+
+		DNS_Question question = ctx.getQuery().getQuestions().get(0);
+		DNS_Packet query = DNS_Packet.newQuery(end, question.getQTYPE(),
+				question.getQCLASS());
+		ctx.setQuery(query);
+
+		/* Answers from the cache if the rest of the chain is there. */
+		long currentTime = System.currentTimeMillis() / 1000;
+		byte[] reply = cache.findAnswer(end, question.getQTYPE(),
+				question.getQCLASS(), query.getBytes(), currentTime);
+
+		if (reply != null) {
+			System.out.println("-Cached answer for: " + end + "-");
+			sendChain(ctx, new DNS_Packet(reply, reply.length));
+			finish(ctx);
+			return;
+		}
+
+		continueChain(ctx);
+	}
+
+	/****************************************************************
+	 * Keeps the CNAME links of a reply as part of the chain being
+	 * followed.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket a reply holding links of the chain.
+	 ***************************************************************/
+	private void addLinks(Resolution_Context ctx, DNS_Packet dnsPacket) {
+		if (ctx.isResolvingCNAME()) {
+			ctx.getCnameAnswers().addAll(dnsPacket.getAnswers());
+		} else {
+			ctx.setAnswerPacket(dnsPacket);
+		}
+
+		ctx.addCname();
+	}
+
+	/****************************************************************
+	 * Skips over as much of the CNAME chain for the name being asked
+	 * about as is in the cache, then looks for the servers of the
+	 * name the cached part ends at. Only the missing links are
+	 * resolved. Called with the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void continueChain(Resolution_Context ctx) {
+		DNS_Packet query = ctx.getQuery();
+		DNS_Question question = query.getQuestions().get(0);
+		long currentTime = System.currentTimeMillis() / 1000;
+
+		byte[] links = cache.findChain(question.getQName(),
+				question.getQTYPE(), question.getQCLASS(),
+				query.getBytes(), currentTime);
+
+		if (links != null) {
+			DNS_Packet chain = new DNS_Packet(links, links.length);
+			DNS_Name end = chain.getChainEnd();
+
+			System.out.println("-Cached CNAME chain to: " + end + "-");
+
+			addLinks(ctx, chain);
+			ctx.setQuery(DNS_Packet.newQuery(end, question.getQTYPE(),
+					question.getQCLASS()));
+		}
+
+		findServers(ctx);
+	}
+
+	/****************************************************************
+	 * Sends a reply which ends the resolution, or the CNAME chain
+	 * leading to it if one was followed, and finishes. Called with
+	 * the context's lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param dnsPacket the final reply.
+	 * @throws IOException if there was an error sending the reply.
+	 ***************************************************************/
+	private void sendFinal(Resolution_Context ctx, DNS_Packet dnsPacket)
+			throws IOException {
+
+		if (ctx.isResolvingCNAME()) {
+			sendChain(ctx, dnsPacket);
+		} else {
+			sendMessage(ctx, dnsPacket.getBytes(), dnsPacket.getLength());
+		}
+
+		finish(ctx);
+	}
+
+	/****************************************************************
+	 * Sends the reply for the end of a CNAME chain with every link
+	 * of the chain put in front of its answers, under the initial
+	 * question. The RCODE is that of the reply for the end, so a
+	 * chain leading to a name which does not exist is an NXDOMAIN.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param last the reply for the end of the chain, or null to send
+	 * the links found so far.
+	 * @throws IOException if there was an error sending the reply.
+	 ***************************************************************/
+	private void sendChain(Resolution_Context ctx, DNS_Packet last)
+			throws IOException {
+
+		DNS_Packet first = ctx.getAnswerPacket();
+
+		if (last == null) {
+			first.addAnswers(ctx.getCnameAnswers());
+			sendAnswers(ctx, first);
+			return;
+		}
+
+		ArrayList<DNS_Answer> links = first.getAnswers();
+		links.addAll(ctx.getCnameAnswers());
+
+		DNS_Question question = ctx.getInitialPacket().getQuestions().get(0);
+		last.addChain(question.getQName(), links);
+
+		sendAnswers(ctx, last);
+	}
+
+	/****************************************************************
+	 * Looks up the addresses of the name servers of a zone cut known
+	 * without glue, from a referral or the cache. Every name is
+	 * looked up at once and the resolution carries on with the first
+	 * addresses found; the rest carry on in the background so that
+	 * every address ends up in the cache. Called with the context's
+	 * lock held.
+	 *
+	 * @param ctx the query being resolved.
+	 * @param zone the zone the servers serve.
+	 * @param nsNames names of the zone's name servers.
+	 ***************************************************************/
+	private void lookUpNameServers(final Resolution_Context ctx,
+			DNS_Name zone, ArrayList<DNS_Name> nsNames) {
+
+		final int step = ctx.nextStep();
+
+		HashSet<DNS_Name> names = new HashSet<DNS_Name>();
+
+		for (DNS_Name ns : nsNames) {
+			if (names.size() == MAX_GLUELESS) break;
+
+			names.add(ns);
+		}
+
+		ctx.setLookupsLeft(names.size());
+
+		ctx.addPending(timers.schedule(new Runnable() {
+			public void run() {
+				lookupsTimedOut(ctx, step);
+			}
+		}, GLUELESS_TIMEOUT, TimeUnit.MILLISECONDS));
+
+		for (DNS_Name name : names) {
+
+			/* Stops once a cached address has moved the query on. */
+			if (ctx.isDone() || step != ctx.getStep()) break;
+
+			System.out.println("-Resolving name server: " + name + "-");
+			lookUpAddress(ctx, step, name, zone);
+		}
+	}
+
+	/****************************************************************
+	 * Finds the addresses of a name server, from the cache if they
+	 * are there, or by a resolution of its own. The resolution spends
+	 * the queries of the one waiting on it, and waits on any lookup
+	 * of the same name already under way rather than starting
+	 * another.
+	 *
+	 * @param ctx the query waiting on the name server.
+	 * @param step the step of the query waiting on it.
+	 * @param name name of the name server.
+	 * @param zone the zone the server was named for.
+	 ***************************************************************/
+	private void lookUpAddress(final Resolution_Context ctx,
+			final int step, final DNS_Name name, final DNS_Name zone) {
+
+		DNS_Packet query = DNS_Packet.newQuery(name, DNS_Answer.A_TYPE,
+				IN_CLASS);
+		long currentTime = System.currentTimeMillis() / 1000;
+
+		byte[] reply = cache.findAnswer(name, DNS_Answer.A_TYPE, IN_CLASS,
+				query.getBytes(), currentTime);
+
+		if (reply != null) {
+			foundAddress(ctx, step, name, zone, reply);
+			return;
+		}
+
+		final Resolution_Context sub =
+				new Resolution_Context(null, 0, query);
+		sub.setDepth(ctx.getDepth() + 1);
+		sub.shareQueries(ctx);
+
+		sub.getFinished().thenRun(new Runnable() {
+			public void run() {
+				foundAddress(ctx, step, name, zone, sub.getReply());
+			}
+		});
+
+		resolveShared(sub, query);
+	}
+
+	/****************************************************************
+	 * Caches the addresses found for a name server and, if they are
+	 * the first found for the referral, sends the query on to them.
+	 *
+	 * @param ctx the query waiting on the name server.
+	 * @param step the step of the query waiting on it.
+	 * @param name name of the name server.
+	 * @param zone the zone the server was named for.
+	 * @param reply bytes of the reply to the A query for the name, or
+	 * null if it could not be resolved.
+	 ***************************************************************/
+	private void foundAddress(Resolution_Context ctx, int step,
+			DNS_Name name, DNS_Name zone, byte[] reply) {
+
+		ArrayList<InetAddress> ips = new ArrayList<InetAddress>();
+
+		try {
+			if (reply != null) {
+				DNS_Packet answer = new DNS_Packet(reply, reply.length);
+				long currentTime = System.currentTimeMillis() / 1000;
+
+				for (DNS_Answer a : answer.getAnswers(DNS_Answer.A_TYPE)) {
+					InetAddress ip = InetAddress.getByName(a.getRDATA());
+					ips.add(ip);
+					cache.addServer(zone, name.toString(), ip, a.getTTL(),
+							currentTime);
+				}
+			}
+		} catch (Exception e) {
+			ips.clear();
+		}
+
+		if (ips.isEmpty()) {
+			System.err.println("Unable to resolve: " + name);
+		}
+
+		synchronized (ctx) {
+			if (ctx.isDone() || step != ctx.getStep()) return;
+
+			if (!ips.isEmpty()) {
+				useServers(ctx, zone, ips);
+				return;
+			}
+
+			ctx.setLookupsLeft(ctx.getLookupsLeft() - 1);
+
+			if (ctx.getLookupsLeft() == 0) {
+				System.err.println("No name server addresses found");
+				finish(ctx);
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Gives up on a referral without glue if none of its name
+	 * servers could be found in time.
+	 *
+	 * @param ctx the query waiting on the name servers.
+	 * @param step the step the lookups were started in.
+	 ***************************************************************/
+	private void lookupsTimedOut(Resolution_Context ctx, int step) {
+		synchronized (ctx) {
+			if (ctx.isDone() || step != ctx.getStep()) return;
+
+			System.err.println("No name server addresses found");
+			finish(ctx);
+		}
+	}
+
+	/****************************************************************
+	 * Ends a resolution, cancelling whatever it was waiting on, and
+	 * runs everything waiting for it to end.
+	 *
+	 * @param ctx the query being resolved.
+	 ***************************************************************/
+	private void finish(Resolution_Context ctx) {
+		boolean ended;
+
+		synchronized (ctx) {
+			ended = ctx.markDone();
+		}
+
+		if (ended) {
+			ctx.getFinished().complete(null);
+		}
+	}
+
 	/****************************************************************
 	 * Main method which initializes and runs the DNS Resolver
 	 * 
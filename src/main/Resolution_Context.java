@@ -0,0 +1,547 @@
+package main;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import packet.DNS_Answer;
+import packet.DNS_Name;
+import packet.DNS_Packet;
+
+/********************************************************************
+ * Resolution Context
+ *
+ * Holds all of the state belonging to a single client query while it
+ * is being resolved, so that many queries can be resolved at the
+ * same time without sharing anything but the cache.
+ *
+ * Resolution is iterative, so the context is also the whole state of
+ * the resolution between steps: the question being asked upstream,
+ * the servers for the current zone cut and which one is being tried,
+ * the CNAME chain followed so far and the queries left to spend. No
+ * thread waits on a reply; each reply or timeout moves the context
+ * on a step, and a resolution is stopped by marking it done.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Resolution_Context {
+
+	/** The IP of the person who sent the original query, or null if
+	 * the resolver started the query itself to refresh its cache. */
+	private InetAddress initialIP;
+
+	/** The port of the person who sent the original query. */
+	private int initialPort;
+
+	/** The TCP connection the original query came on, or null if it
+	 * came over UDP. */
+	private Client_Connection connection;
+
+	/** The packet created from the initial query. */
+	private DNS_Packet initialPacket;
+
+	/** The name of the initial query. */
+	private String initialName;
+
+	/** The query sent upstream: the initial query, or a query for
+	 * the target of the last CNAME followed. */
+	private DNS_Packet query;
+
+	/** Name of the current zone cut. */
+	private DNS_Name zone;
+
+	/** Servers for the current zone cut, in the order they are tried. */
+	private ArrayList<InetAddress> servers;
+
+	/** Index of the server being tried. */
+	private int serverIndex;
+
+	/** Attempts made so far to the server being tried. */
+	private int tries;
+
+	/** True if the server being tried is asked over TCP, after it
+	 * sent a truncated reply. */
+	private boolean tcp;
+
+	/** Number of the current step. Replies and timeouts carry the
+	 * step they were started in and are ignored once it is over. */
+	private int step;
+
+	/** Step the attempts on the current servers started in. A reply
+	 * to any attempt since then is still taken, so a retry does not
+	 * throw away an earlier attempt or a hedge still under way. */
+	private int firstAttempt;
+
+	/** Server the query was hedged to in the current step, or null
+	 * if it has not been. */
+	private InetAddress hedged;
+
+	/** Replies and timers the current step is waiting on. */
+	private ArrayList<Future<?>> pending;
+
+	/** Queries which may still be sent upstream, shared with the
+	 * resolutions started to find the addresses of name servers. */
+	private AtomicInteger queriesLeft;
+
+	/** The reply to the initial query, if it was a CNAME. The rest
+	 * of the chain is added to it once the end is reached. */
+	private DNS_Packet answerPacket;
+
+	/** Answers received for the CNAMEs after the first. */
+	private ArrayList<DNS_Answer> cnameAnswers;
+
+	/** Number of CNAMEs followed. */
+	private int cnameCount;
+
+	/** Name server lookups the current step is waiting on. */
+	private int lookupsLeft;
+
+	/** True once resolution has ended. */
+	private boolean done;
+
+	/** Completed when resolution ends, whether or not a reply was 
+	 * found. */
+	private CompletableFuture<Void> finished;
+
+	/** Bytes of the reply sent to the client, or null if none. */
+	private byte[] reply;
+
+	/** True once the client has been sent a reply. Claimed without
+	 * taking the context's lock, which a worker may hold for a whole
+	 * step, so the timer thread never waits on it. */
+	private AtomicBoolean answered;
+
+	/** Number of queries this one was started to help resolve, such
+	 * as the address of a name server. 0 for a client's query. */
+	private int depth;
+
+	/****************************************************************
+	 * Constructor for Resolution_Context.
+	 *
+	 * @param ip address the query was received from.
+	 * @param port port the query was received from.
+	 * @param packet the query received from the client.
+	 ***************************************************************/
+	public Resolution_Context(InetAddress ip, int port, DNS_Packet packet) {
+		initialIP = ip;
+		initialPort = port;
+		initialPacket = packet;
+		initialName = packet.getNames();
+		query = packet;
+		servers = new ArrayList<InetAddress>();
+		pending = new ArrayList<Future<?>>();
+		cnameAnswers = new ArrayList<DNS_Answer>();
+		finished = new CompletableFuture<Void>();
+		answered = new AtomicBoolean();
+	}
+
+	/****************************************************************
+	 * @return the IP of the client that sent the original query.
+	 ***************************************************************/
+	public InetAddress getInitialIP() {
+		return initialIP;
+	}
+
+	/****************************************************************
+	 * @return true if a client is waiting for the reply, false if 
+	 * the query only refreshes the cache.
+	 ***************************************************************/
+	public boolean hasClient() {
+		return initialIP != null;
+	}
+
+	/****************************************************************
+	 * @return the port of the client that sent the original query.
+	 ***************************************************************/
+	public int getInitialPort() {
+		return initialPort;
+	}
+
+	/****************************************************************
+	 * @return the TCP connection the original query came on, or null
+	 * if it came over UDP.
+	 ***************************************************************/
+	public Client_Connection getConnection() {
+		return connection;
+	}
+
+	/****************************************************************
+	 * @param connection the TCP connection the original query came
+	 * on.
+	 ***************************************************************/
+	public void setConnection(Client_Connection connection) {
+		this.connection = connection;
+	}
+
+	/****************************************************************
+	 * @return the packet created from the original query.
+	 ***************************************************************/
+	public DNS_Packet getInitialPacket() {
+		return initialPacket;
+	}
+
+	/****************************************************************
+	 * @return the name of the original query.
+	 ***************************************************************/
+	public String getInitialName() {
+		return initialName;
+	}
+
+	/****************************************************************
+	 * @return the query sent upstream.
+	 ***************************************************************/
+	public DNS_Packet getQuery() {
+		return query;
+	}
+
+	/****************************************************************
+	 * @param query the query to send upstream.
+	 ***************************************************************/
+	public void setQuery(DNS_Packet query) {
+		this.query = query;
+	}
+
+	/****************************************************************
+	 * @return the name asked about upstream.
+	 ***************************************************************/
+	public String getQueryName() {
+		return query.getNames();
+	}
+
+	/****************************************************************
+	 * @return name of the current zone cut.
+	 ***************************************************************/
+	public DNS_Name getZone() {
+		return zone;
+	}
+
+	/****************************************************************
+	 * Moves on to a new zone cut, starting with its first server.
+	 *
+	 * @param zone name of the zone cut.
+	 * @param servers servers for the zone cut, in the order they are
+	 * to be tried.
+	 ***************************************************************/
+	public void setServers(DNS_Name zone, ArrayList<InetAddress> servers) {
+		this.zone = zone;
+		this.servers = servers;
+		serverIndex = 0;
+		tries = 0;
+		tcp = false;
+	}
+
+	/****************************************************************
+	 * @return the server being tried, or null if all have been.
+	 ***************************************************************/
+	public InetAddress getServer() {
+		if (serverIndex >= servers.size()) return null;
+
+		return servers.get(serverIndex);
+	}
+
+	/****************************************************************
+	 * @return the server after the one being tried, or null if there
+	 * is none.
+	 ***************************************************************/
+	public InetAddress getBackup() {
+		if (serverIndex + 1 >= servers.size()) return null;
+
+		return servers.get(serverIndex + 1);
+	}
+
+	/****************************************************************
+	 * Gives up on the server being tried and moves to the next.
+	 ***************************************************************/
+	public void nextServer() {
+		serverIndex++;
+		tries = 0;
+		tcp = false;
+	}
+
+	/****************************************************************
+	 * Moves to the given server of the current zone cut, with a fresh
+	 * set of attempts, wherever it is in the order.
+	 *
+	 * @param server address of the server.
+	 * @return false if the server is not one of the zone cut's.
+	 ***************************************************************/
+	public boolean moveTo(InetAddress server) {
+		int index = servers.indexOf(server);
+
+		if (index < 0) return false;
+
+		serverIndex = index;
+		tries = 0;
+		tcp = false;
+		return true;
+	}
+
+	/****************************************************************
+	 * @return true if the server being tried is asked over TCP.
+	 ***************************************************************/
+	public boolean isTCP() {
+		return tcp;
+	}
+
+	/****************************************************************
+	 * Asks the server being tried again over TCP, with a fresh set
+	 * of attempts.
+	 ***************************************************************/
+	public void useTCP() {
+		tcp = true;
+		tries = 0;
+	}
+
+	/****************************************************************
+	 * @return attempts made so far to the server being tried.
+	 ***************************************************************/
+	public int getTries() {
+		return tries;
+	}
+
+	/****************************************************************
+	 * Counts an attempt to the server being tried.
+	 ***************************************************************/
+	public void addTry() {
+		tries++;
+	}
+
+	/****************************************************************
+	 * @return number of the current step.
+	 ***************************************************************/
+	public int getStep() {
+		return step;
+	}
+
+	/****************************************************************
+	 * Ends the current step, cancelling whatever it was waiting on,
+	 * and starts the next.
+	 *
+	 * @return number of the new step.
+	 ***************************************************************/
+	public int nextStep() {
+		for (Future<?> f : pending) {
+			f.cancel(false);
+		}
+
+		pending.clear();
+		hedged = null;
+		firstAttempt = ++step;
+		return step;
+	}
+
+	/****************************************************************
+	 * Starts the next attempt on the current servers. Replies to the
+	 * earlier attempts are still waited on, while their timers are
+	 * ignored from now on.
+	 *
+	 * @return number of the new step.
+	 ***************************************************************/
+	public int nextAttempt() {
+		return ++step;
+	}
+
+	/****************************************************************
+	 * @param replyStep the step a query was sent in.
+	 * @return true if a reply to the query is still waited on.
+	 ***************************************************************/
+	public boolean isWaiting(int replyStep) {
+		return replyStep >= firstAttempt && replyStep <= step;
+	}
+
+	/****************************************************************
+	 * @return server the query was hedged to in the current step, or
+	 * null if it has not been.
+	 ***************************************************************/
+	public InetAddress getHedged() {
+		return hedged;
+	}
+
+	/****************************************************************
+	 * @param hedged server the query was hedged to, or null once the
+	 * hedge has been taken as that server's attempt.
+	 ***************************************************************/
+	public void setHedged(InetAddress hedged) {
+		this.hedged = hedged;
+	}
+
+	/****************************************************************
+	 * @param f a reply or timer the current step is waiting on.
+	 ***************************************************************/
+	public void addPending(Future<?> f) {
+		pending.add(f);
+	}
+
+	/****************************************************************
+	 * @param budget queries which may be sent upstream.
+	 ***************************************************************/
+	public void setQueriesLeft(int budget) {
+		queriesLeft = new AtomicInteger(budget);
+	}
+
+	/****************************************************************
+	 * Takes the queries this resolution may send from another's, so
+	 * that whatever it sends is charged to that one.
+	 *
+	 * @param parent the resolution waiting on this one.
+	 ***************************************************************/
+	public void shareQueries(Resolution_Context parent) {
+		queriesLeft = parent.queriesLeft;
+	}
+
+	/****************************************************************
+	 * Spends one of the queries left, if there are any.
+	 *
+	 * @return true if a query may be sent.
+	 ***************************************************************/
+	public boolean spendQuery() {
+		while (true) {
+			int left = queriesLeft.get();
+
+			if (left <= 0) return false;
+
+			if (queriesLeft.compareAndSet(left, left - 1)) return true;
+		}
+	}
+
+	/****************************************************************
+	 * @return true if a CNAME is currently being resolved.
+	 ***************************************************************/
+	public boolean isResolvingCNAME() {
+		return answerPacket != null;
+	}
+
+	/****************************************************************
+	 * @return the reply to the initial query if it was a CNAME, or
+	 * null.
+	 ***************************************************************/
+	public DNS_Packet getAnswerPacket() {
+		return answerPacket;
+	}
+
+	/****************************************************************
+	 * @param packet the reply to the initial query, a CNAME.
+	 ***************************************************************/
+	public void setAnswerPacket(DNS_Packet packet) {
+		answerPacket = packet;
+	}
+
+	/****************************************************************
+	 * @return the answers received for CNAMEs after the first.
+	 ***************************************************************/
+	public ArrayList<DNS_Answer> getCnameAnswers() {
+		return cnameAnswers;
+	}
+
+	/****************************************************************
+	 * @return number of CNAMEs followed.
+	 ***************************************************************/
+	public int getCnameCount() {
+		return cnameCount;
+	}
+
+	/****************************************************************
+	 * Counts a CNAME followed.
+	 ***************************************************************/
+	public void addCname() {
+		cnameCount++;
+	}
+
+	/****************************************************************
+	 * @return name server lookups the current step is waiting on.
+	 ***************************************************************/
+	public int getLookupsLeft() {
+		return lookupsLeft;
+	}
+
+	/****************************************************************
+	 * @param lookups name server lookups the current step is waiting
+	 * on.
+	 ***************************************************************/
+	public void setLookupsLeft(int lookups) {
+		lookupsLeft = lookups;
+	}
+
+	/****************************************************************
+	 * @return true once resolution has ended.
+	 ***************************************************************/
+	public boolean isDone() {
+		return done;
+	}
+
+	/****************************************************************
+	 * Marks resolution as ended and cancels whatever it was waiting
+	 * on. The caller must then complete getFinished().
+	 *
+	 * @return true if resolution had not already ended.
+	 ***************************************************************/
+	public boolean markDone() {
+		if (done) return false;
+
+		nextStep();
+		done = true;
+		return true;
+	}
+
+	/****************************************************************
+	 * @return future completed when resolution ends.
+	 ***************************************************************/
+	public CompletableFuture<Void> getFinished() {
+		return finished;
+	}
+
+	/****************************************************************
+	 * @return bytes of the reply sent to the client, or null if no
+	 * reply has been sent.
+	 ***************************************************************/
+	public byte[] getReply() {
+		return reply;
+	}
+
+	/****************************************************************
+	 * @param reply bytes of the reply sent to the client.
+	 ***************************************************************/
+	public void setReply(byte[] reply) {
+		this.reply = reply;
+	}
+
+	/****************************************************************
+	 * Claims the right to reply to the client. Only the first claim
+	 * succeeds, so a client is never sent both a stale answer and a
+	 * fresh one.
+	 *
+	 * @return true if the caller should send the reply.
+	 ***************************************************************/
+	public boolean claimReply() {
+		return answered.compareAndSet(false, true);
+	}
+
+	/****************************************************************
+	 * @return number of queries this one was started to help resolve.
+	 ***************************************************************/
+	public int getDepth() {
+		return depth;
+	}
+
+	/****************************************************************
+	 * @param depth number of queries this one was started to help
+	 * resolve.
+	 ***************************************************************/
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	/****************************************************************
+	 * @return true once the client has been sent a reply.
+	 ***************************************************************/
+	public boolean isAnswered() {
+		return answered.get();
+	}
+}
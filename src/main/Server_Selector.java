@@ -0,0 +1,284 @@
+package main;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/********************************************************************
+ * Server Selector
+ *
+ * Keeps a smoothed round trip time and its variance for every
+ * upstream server, updated after each exchange the same way TCP
+ * does (RFC 6298). Servers for the next hop are tried fastest first.
+ * Now and then a random server is moved to the front instead, so a
+ * server which was slow once, or has never been tried, still gets
+ * the chance to show it is faster.
+ *
+ * The same estimates give each server its own retransmission
+ * timeout. Each timeout in a row doubles it, up to a cap, and a
+ * server which has timed out repeatedly is only given one attempt,
+ * so a dead server fails fast while a slow one is still waited for.
+ *
+ * They also say when a server is late enough that the query should
+ * be hedged: sent to the next server as well, taking whichever reply
+ * comes first. Hedges are rationed to a share of all queries sent.
+ *
+ * Only the estimates of the most recently used servers are kept, so
+ * they do not grow without bound.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Server_Selector {
+
+	/** Weight given to a new sample in the smoothed RTT. */
+	private final double ALPHA = 1.0 / 8;
+
+	/** Weight given to a new sample in the RTT variance. */
+	private final double BETA = 1.0 / 4;
+
+	/** Servers never tried are given a random RTT below this, in
+	 * milliseconds, so they are tried before servers known to be
+	 * slow. */
+	private final int UNKNOWN_RTT = 32;
+
+	/** Chance that a random server is tried first. */
+	private final double EXPLORE = 0.05;
+
+	/** Timeout in milliseconds for a server never heard from. */
+	private final int INITIAL_RTO = 1000;
+
+	/** Shortest timeout in milliseconds. */
+	private final int MIN_RTO = 50;
+
+	/** Longest timeout in milliseconds. */
+	private final int MAX_RTO = 3500;
+
+	/** Clock granularity in milliseconds, the least time added to
+	 * the smoothed RTT for its variance. */
+	private final int GRANULARITY = 10;
+
+	/** Most times a timeout is doubled. */
+	private final int MAX_BACKOFF = 6;
+
+	/** Timeouts in a row after which a server is only given one
+	 * attempt per query. */
+	private final int DEAD_BACKOFF = 2;
+
+	/** Time in milliseconds before hedging a query to a server never
+	 * heard from. */
+	private final int INITIAL_HEDGE = 250;
+
+	/** Hedged queries allowed for each query sent. */
+	private final double HEDGE_SHARE = 0.1;
+
+	/** Most hedged queries that can be saved up for a burst. */
+	private final double HEDGE_BURST = 10;
+
+	/** Most servers estimates are kept for. */
+	private final int MAX_SERVERS = 4096;
+
+	/** Hedged queries which may be sent now. */
+	private double hedgeTokens;
+
+	/** Estimates of the servers heard from, indexed by address,
+	 * least recently used first. */
+	private LinkedHashMap<InetAddress, RTT_Estimate> estimates;
+
+	/** Source of the random choices. */
+	private Random random;
+
+	/****************************************************************
+	 * Constructor for Server_Selector.
+	 ***************************************************************/
+	public Server_Selector() {
+		estimates = new LinkedHashMap<InetAddress, RTT_Estimate>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(
+					Map.Entry<InetAddress, RTT_Estimate> eldest) {
+				return size() > MAX_SERVERS;
+			}
+		};
+		random = new Random();
+		hedgeTokens = HEDGE_BURST;
+	}
+
+	/****************************************************************
+	 * Records the time a server took to reply.
+	 *
+	 * @param server address of the server.
+	 * @param rtt milliseconds between sending the query and
+	 * receiving the reply.
+	 ***************************************************************/
+	public synchronized void recordRTT(InetAddress server, double rtt) {
+		RTT_Estimate e = estimates.get(server);
+
+		if (e == null) {
+			e = new RTT_Estimate();
+			e.srtt = rtt;
+			e.rttvar = rtt / 2;
+			estimates.put(server, e);
+			return;
+		}
+
+		e.rttvar = (1 - BETA) * e.rttvar + BETA * Math.abs(e.srtt - rtt);
+		e.srtt = (1 - ALPHA) * e.srtt + ALPHA * rtt;
+		e.backoff = 0;
+	}
+
+	/****************************************************************
+	 * Records that a server did not reply in time, doubling its
+	 * timeout. Since every query to the server uses a new ID, a late
+	 * reply is never mistaken for the reply to a retry, so the 
+	 * estimates are not reset as TCP's would be.
+	 *
+	 * @param server address of the server.
+	 ***************************************************************/
+	public synchronized void recordTimeout(InetAddress server) {
+		RTT_Estimate e = estimates.get(server);
+
+		/* Seeds a server never heard from so that its timeout before
+		 * backing off is INITIAL_RTO. */
+		if (e == null) {
+			e = new RTT_Estimate();
+			e.srtt = INITIAL_RTO / 3.0;
+			e.rttvar = e.srtt / 2;
+			estimates.put(server, e);
+		}
+
+		e.backoff = Math.min(e.backoff + 1, MAX_BACKOFF);
+	}
+
+	/****************************************************************
+	 * Returns how long to wait for a server to reply before giving
+	 * up on an attempt: the smoothed RTT plus four times its 
+	 * variance, doubled for each timeout in a row, and kept between
+	 * MIN_RTO and MAX_RTO.
+	 *
+	 * @param server address of the server.
+	 * @return the timeout in milliseconds.
+	 ***************************************************************/
+	public synchronized long getRTO(InetAddress server) {
+		RTT_Estimate e = estimates.get(server);
+
+		if (e == null) return INITIAL_RTO;
+
+		double rto = e.srtt + Math.max(GRANULARITY, 4 * e.rttvar);
+		rto *= 1 << e.backoff;
+
+		return (long) Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+	}
+
+	/****************************************************************
+	 * @param server address of the server.
+	 * @return number of attempts a query may make to the server: 
+	 * one if it has timed out repeatedly, otherwise two.
+	 ***************************************************************/
+	public synchronized int getAttempts(InetAddress server) {
+		RTT_Estimate e = estimates.get(server);
+
+		if (e != null && e.backoff >= DEAD_BACKOFF) return 1;
+
+		return 2;
+	}
+
+	/****************************************************************
+	 * Returns how long to wait for a server before hedging: roughly
+	 * its 90th percentile RTT, taken as the smoothed RTT plus twice
+	 * its mean deviation.
+	 *
+	 * @param server address of the server.
+	 * @return the delay in milliseconds.
+	 ***************************************************************/
+	public synchronized long getHedgeDelay(InetAddress server) {
+		RTT_Estimate e = estimates.get(server);
+
+		if (e == null) return INITIAL_HEDGE;
+
+		return (long) Math.max(GRANULARITY, e.srtt + 2 * e.rttvar);
+	}
+
+	/****************************************************************
+	 * Counts a query sent upstream, earning a share of a hedge.
+	 ***************************************************************/
+	public synchronized void countQuery() {
+		hedgeTokens = Math.min(HEDGE_BURST, hedgeTokens + HEDGE_SHARE);
+	}
+
+	/****************************************************************
+	 * Claims a hedged query, if one is allowed.
+	 *
+	 * @return true if the caller may send a hedged query.
+	 ***************************************************************/
+	public synchronized boolean claimHedge() {
+		if (hedgeTokens < 1) return false;
+
+		hedgeTokens -= 1;
+		return true;
+	}
+
+	/****************************************************************
+	 * Orders servers in the order they should be tried: fastest
+	 * first, except that now and then a random one is put first.
+	 *
+	 * @param servers the servers for the next hop.
+	 * @return a new list of the same servers.
+	 ***************************************************************/
+	public ArrayList<InetAddress> order(List<InetAddress> servers) {
+		ArrayList<InetAddress> ordered = new ArrayList<InetAddress>(servers);
+
+		if (ordered.size() < 2) return ordered;
+
+		final HashMap<InetAddress, Double> rtts =
+				new HashMap<InetAddress, Double>();
+
+		synchronized (this) {
+			for (InetAddress server : ordered) {
+				RTT_Estimate e = estimates.get(server);
+				double rtt = (e == null) ?
+						random.nextDouble() * UNKNOWN_RTT : 
+						e.srtt * (1 << e.backoff);
+				rtts.put(server, rtt);
+			}
+
+			Collections.sort(ordered, new Comparator<InetAddress>() {
+				public int compare(InetAddress a, InetAddress b) {
+					return Double.compare(rtts.get(a), rtts.get(b));
+				}
+			});
+
+			if (random.nextDouble() < EXPLORE) {
+				int pick = 1 + random.nextInt(ordered.size() - 1);
+				ordered.add(0, ordered.remove(pick));
+			}
+		}
+
+		return ordered;
+	}
+
+	/****************************************************************
+	 * Smoothed RTT and variance of one server, in milliseconds.
+	 ***************************************************************/
+	private static final class RTT_Estimate {
+
+		/** Smoothed round trip time. */
+		private double srtt;
+
+		/** Variance of the round trip time. */
+		private double rttvar;
+
+		/** Number of timeouts in a row. */
+		private int backoff;
+	}
+}
@@ -0,0 +1,408 @@
+package main;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import packet.DNS_Packet;
+
+/********************************************************************
+ * Upstream Channel
+ *
+ * Non-blocking channels used for every query sent to an upstream
+ * server. Queries go out through a pool of sockets bound to random
+ * ports, separate from the socket clients use. A single event loop
+ * thread reads all replies and hands each one to the query waiting
+ * for it, matched by server, port, DNS ID and question. Any number
+ * of workers can have queries in flight at once.
+ *
+ * Queries can also be sent over TCP, for replies too large for UDP.
+ * Each server has one pooled TCP connection which every such query
+ * shares, so a connection is only set up once while it stays in use.
+ * Its replies are matched the same way.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Upstream_Channel implements Runnable {
+
+	/** Size of the buffer replies are read into: the largest UDP
+	 * payload, so no reply is ever cut short. */
+	private final int BUFFER_SIZE = 65535;
+
+	/** Number of sockets upstream queries are spread across. */
+	private final int POOL_SIZE = 8;
+
+	/** Lowest port a socket in the pool may be bound to. */
+	private final int MIN_PORT = 1024;
+
+	/** Number of random ports to try before letting the system
+	 * choose one. */
+	private final int BIND_ATTEMPTS = 16;
+
+	/** Channels that upstream queries are sent from. */
+	private DatagramChannel[] channels;
+
+	/** Selector which wakes the event loop when a reply arrives. */
+	private Selector selector;
+
+	/** Queries which have been sent and not yet answered. */
+	private ConcurrentHashMap<Pending_Key, Pending_Query> pending;
+
+	/** Open TCP connections, indexed by server. */
+	private ConcurrentHashMap<InetSocketAddress, Upstream_Connection>
+			connections;
+
+	/** Source of the IDs used for upstream queries. */
+	private SecureRandom random;
+
+	/****************************************************************
+	 * Constructor for Upstream_Channel. Opens the pool of channels
+	 * on random ports and starts the event loop.
+	 *
+	 * @throws IOException if the channels could not be opened.
+	 ***************************************************************/
+	public Upstream_Channel() throws IOException {
+		pending = new ConcurrentHashMap<Pending_Key, Pending_Query>();
+		connections = new ConcurrentHashMap<InetSocketAddress,
+				Upstream_Connection>();
+		random = new SecureRandom();
+
+		selector = Selector.open();
+		channels = new DatagramChannel[POOL_SIZE];
+
+		for (int i = 0; i < POOL_SIZE; i++) {
+			channels[i] = openChannel();
+			channels[i].register(selector, SelectionKey.OP_READ);
+		}
+
+		Thread loop = new Thread(this, "upstream-io");
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	/****************************************************************
+	 * Opens a non-blocking channel bound to a random port. Falls
+	 * back to a port chosen by the system if no random port is free.
+	 *
+	 * @return the opened channel.
+	 * @throws IOException if the channel could not be opened.
+	 ***************************************************************/
+	private DatagramChannel openChannel() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+
+		for (int i = 0; i < BIND_ATTEMPTS; i++) {
+			int port = MIN_PORT + random.nextInt(0x10000 - MIN_PORT);
+
+			try {
+				channel.bind(new InetSocketAddress(port));
+				break;
+			} catch (BindException be) {
+				continue;
+			}
+		}
+
+		if (channel.getLocalAddress() == null) {
+			channel.bind(null);
+		}
+
+		channel.configureBlocking(false);
+		return channel;
+	}
+
+	/****************************************************************
+	 * Sends the given query to a server under a fresh random ID.
+	 * The returned future is completed with the reply, which has
+	 * had the query's original ID written back into it. Cancelling
+	 * the future stops waiting for the reply.
+	 *
+	 * @param packet query to send.
+	 * @param ip the IPv4 address of the server.
+	 * @param port the port of the server.
+	 * @return future completed when the reply arrives.
+	 * @throws IOException if there is an error sending the packet.
+	 ***************************************************************/
+	public CompletableFuture<DNS_Packet> send(DNS_Packet packet,
+			InetAddress ip, int port) throws IOException {
+
+		InetSocketAddress server = new InetSocketAddress(ip, port);
+		Pending_Query query = register(packet, server);
+		DatagramChannel channel = channels[random.nextInt(POOL_SIZE)];
+
+		try {
+			channel.send(ByteBuffer.wrap(query.data), server);
+		} catch (IOException e) {
+			query.future.cancel(false);
+			throw e;
+		}
+
+		return query.future;
+	}
+
+	/****************************************************************
+	 * Sends the given query to a server over TCP, on the server's
+	 * pooled connection, opening one if there is none. The reply is
+	 * handled the same as one over UDP.
+	 *
+	 * @param packet query to send.
+	 * @param ip the IPv4 address of the server.
+	 * @param port the port of the server.
+	 * @return future completed when the reply arrives.
+	 * @throws IOException if there is an error sending the packet.
+	 ***************************************************************/
+	public CompletableFuture<DNS_Packet> sendTCP(DNS_Packet packet,
+			InetAddress ip, int port) throws IOException {
+
+		InetSocketAddress server = new InetSocketAddress(ip, port);
+		Pending_Query query = register(packet, server);
+
+		try {
+			getConnection(server).send(query.data);
+		} catch (IOException e) {
+			query.future.cancel(false);
+			throw e;
+		}
+
+		return query.future;
+	}
+
+	/****************************************************************
+	 * @param server address and port of a server.
+	 * @return the open connection to the server, opening a new one if
+	 * there is none.
+	 ***************************************************************/
+	private synchronized Upstream_Connection getConnection(
+			InetSocketAddress server) {
+		Upstream_Connection connection = connections.get(server);
+
+		if (connection == null || !connection.isOpen()) {
+			connection = new Upstream_Connection(server, this);
+			connections.put(server, connection);
+		}
+
+		return connection;
+	}
+
+	/****************************************************************
+	 * Forgets a connection once it has closed.
+	 *
+	 * @param server the server the connection was to.
+	 * @param connection the connection which closed.
+	 ***************************************************************/
+	void closed(InetSocketAddress server, Upstream_Connection connection) {
+		connections.remove(server, connection);
+	}
+
+	/****************************************************************
+	 * Copies a query under a fresh random ID not already in use for
+	 * the server, and records it as waiting for its reply.
+	 *
+	 * @param packet query to send.
+	 * @param server address and port the query is sent to.
+	 * @return the query waiting for its reply.
+	 ***************************************************************/
+	private Pending_Query register(DNS_Packet packet,
+			InetSocketAddress server) {
+
+		byte[] data = new byte[packet.getLength()];
+		System.arraycopy(packet.getBytes(), 0, data, 0, data.length);
+
+		Pending_Query query = new Pending_Query(data);
+		Pending_Key key;
+
+		/* Picks an ID not already in use for this server. */
+		do {
+			key = new Pending_Key(server, random.nextInt(0x10000));
+		} while (pending.putIfAbsent(key, query) != null);
+
+		/* Forgets the query however it ends, including cancellation
+		 * after a timeout. */
+		final Pending_Key done = key;
+		final Pending_Query sent = query;
+		query.future.whenComplete(new BiConsumer<DNS_Packet, Throwable>() {
+			public void accept(DNS_Packet p, Throwable t) {
+				pending.remove(done, sent);
+			}
+		});
+
+		data[0] = (byte) (key.id >> 8);
+		data[1] = (byte) key.id;
+
+		return query;
+	}
+
+	/****************************************************************
+	 * Event loop which reads every reply from the channel and hands
+	 * it to the query waiting for it.
+	 ***************************************************************/
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		while (true) {
+			try {
+				selector.select();
+
+				Iterator<SelectionKey> keys = 
+						selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					DatagramChannel channel = 
+							(DatagramChannel) keys.next().channel();
+					keys.remove();
+
+					SocketAddress from;
+
+					/* Drains every datagram that is ready. */
+					while ((from = channel.receive(buffer)) != null) {
+						buffer.flip();
+						byte[] data = new byte[buffer.remaining()];
+						buffer.get(data);
+						buffer.clear();
+
+						dispatch((InetSocketAddress) from, data);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Error receiving upstream packet");
+			}
+		}
+	}
+
+	/****************************************************************
+	 * Matches a reply to the query that is waiting for it. Replies
+	 * that match no outstanding query are ignored, and one which
+	 * cannot be parsed fails the query it matches.
+	 *
+	 * @param from address the reply was received from.
+	 * @param data bytes of the reply.
+	 ***************************************************************/
+	void dispatch(InetSocketAddress from, byte[] data) {
+		if (data.length < 12) return;
+
+		int id = ((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
+		Pending_Key key = new Pending_Key(from, id);
+		Pending_Query query = pending.get(key);
+
+		if (query == null || !query.matches(data)) {
+			System.err.println("Ignoring packet from: " +
+					from.getAddress().getHostAddress());
+			return;
+		}
+
+		/* Restores the ID the query was sent with. */
+		data[0] = query.originalID[0];
+		data[1] = query.originalID[1];
+
+		DNS_Packet reply = null;
+
+		/* Fails the query with replies which cannot be parsed. */
+		try {
+			reply = new DNS_Packet(data, data.length);
+		} catch (RuntimeException re) {
+			System.err.println("Malformed packet from: " +
+					from.getAddress().getHostAddress());
+			query.future.completeExceptionally(re);
+			return;
+		}
+
+		query.future.complete(reply);
+	}
+
+	/****************************************************************
+	 * Identifies an outstanding query by server and DNS ID.
+	 ***************************************************************/
+	private static final class Pending_Key {
+
+		/** Address and port the query was sent to. */
+		private final InetSocketAddress server;
+
+		/** ID the query was sent with. */
+		private final int id;
+
+		private Pending_Key(InetSocketAddress server, int id) {
+			this.server = server;
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Pending_Key)) return false;
+
+			Pending_Key other = (Pending_Key) o;
+			return id == other.id && server.equals(other.server);
+		}
+
+		@Override
+		public int hashCode() {
+			return server.hashCode() * 31 + id;
+		}
+	}
+
+	/****************************************************************
+	 * A query which has been sent and is waiting for its reply.
+	 ***************************************************************/
+	private static final class Pending_Query {
+
+		/** Bytes of the query as it was sent. */
+		private final byte[] data;
+
+		/** ID of the query before it was replaced. */
+		private final byte[] originalID;
+
+		/** Completed with the reply. */
+		private final CompletableFuture<DNS_Packet> future;
+
+		private Pending_Query(byte[] data) {
+			this.data = data;
+			originalID = new byte[] {data[0], data[1]};
+			future = new CompletableFuture<DNS_Packet>();
+		}
+
+		/************************************************************
+		 * Compares the question section of a reply to the question
+		 * this query was sent with, ignoring the case of names.
+		 *
+		 * @param reply bytes of the reply.
+		 * @return true if the reply is for this query's question.
+		 ***********************************************************/
+		private boolean matches(byte[] reply) {
+			int end = 12;
+
+			/* Skips over the name and the type and class fields. */
+			while (end < data.length && data[end] != 0) {
+				end += (data[end] & 0xFF) + 1;
+			}
+			end += 5;
+
+			if (end > data.length || end > reply.length) return false;
+
+			for (int i = 4; i < end; i++) {
+				if (i >= 6 && i < 12) continue;
+
+				int a = data[i] & 0xFF;
+				int b = reply[i] & 0xFF;
+
+				if (a >= 'A' && a <= 'Z') a += 32;
+				if (b >= 'A' && b <= 'Z') b += 32;
+
+				if (a != b) return false;
+			}
+
+			return true;
+		}
+	}
+}
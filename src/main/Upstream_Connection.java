@@ -0,0 +1,181 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+
+/********************************************************************
+ * Upstream Connection
+ *
+ * A TCP connection to one upstream server, kept open and shared by
+ * every query asked of the server over TCP. Queries are written
+ * without waiting for the replies to earlier ones, each preceded by
+ * its length in two bytes, and replies are matched to queries by
+ * the channel that owns the connection, whatever order they come in.
+ *
+ * The connection is opened by its own thread, which then reads the
+ * replies, so sending never waits for the connection to be set up.
+ * Queries sent before it is open are written once it is. It is
+ * closed once it has been idle for a while.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class Upstream_Connection implements Runnable {
+
+	/** Milliseconds allowed for the connection to be opened. */
+	private final int CONNECT_TIMEOUT = 3000;
+
+	/** Milliseconds a connection may sit idle before it is closed. */
+	private final int IDLE_TIMEOUT = 10000;
+
+	/** The server the connection is to. */
+	private InetSocketAddress server;
+
+	/** The channel replies are handed to. */
+	private Upstream_Channel owner;
+
+	/** The connection's socket. */
+	private Socket socket;
+
+	/** Stream queries are written to, or null until the connection
+	 * is open. */
+	private OutputStream out;
+
+	/** Queries waiting for the connection to open, or null once it
+	 * has. */
+	private ArrayList<byte[]> waiting;
+
+	/** True once the connection has been closed. */
+	private boolean closed;
+
+	/****************************************************************
+	 * Constructor for Upstream_Connection. Starts the thread which
+	 * opens the connection.
+	 *
+	 * @param server the server to connect to.
+	 * @param owner the channel replies are handed to.
+	 ***************************************************************/
+	public Upstream_Connection(InetSocketAddress server,
+			Upstream_Channel owner) {
+		this.server = server;
+		this.owner = owner;
+		socket = new Socket();
+		waiting = new ArrayList<byte[]>();
+
+		Thread reader = new Thread(this, "upstream-tcp");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/****************************************************************
+	 * Sends a query to the server, preceded by its length.
+	 *
+	 * @param data bytes of the query.
+	 * @throws IOException if the connection is closed or the query
+	 * could not be written.
+	 ***************************************************************/
+	public synchronized void send(byte[] data) throws IOException {
+		if (closed) throw new IOException("Connection closed");
+
+		byte[] framed = new byte[data.length + 2];
+		framed[0] = (byte) (data.length >> 8);
+		framed[1] = (byte) data.length;
+		System.arraycopy(data, 0, framed, 2, data.length);
+
+		if (out == null) {
+			waiting.add(framed);
+			return;
+		}
+
+		try {
+			out.write(framed);
+			out.flush();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/****************************************************************
+	 * @return true if queries may still be sent on the connection.
+	 ***************************************************************/
+	public synchronized boolean isOpen() {
+		return !closed;
+	}
+
+	/****************************************************************
+	 * Opens the connection, writes any queries waiting on it, then
+	 * reads replies until the connection fails or sits idle.
+	 ***************************************************************/
+	public void run() {
+		try {
+			socket.connect(server, CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(IDLE_TIMEOUT);
+
+			synchronized (this) {
+				out = socket.getOutputStream();
+
+				for (byte[] framed : waiting) {
+					out.write(framed);
+				}
+
+				out.flush();
+				waiting = null;
+			}
+
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+
+			while (true) {
+				int first;
+
+				try {
+					first = in.read();
+				} catch (SocketTimeoutException te) {
+					break;
+				}
+
+				if (first < 0) break;
+
+				int length = (first << 8) | in.readUnsignedByte();
+				byte[] data = new byte[length];
+				in.readFully(data);
+
+				owner.dispatch(server, data);
+			}
+		} catch (IOException e) {
+			System.err.println("Error on connection to: " +
+					server.getAddress().getHostAddress());
+		} finally {
+			close();
+		}
+	}
+
+	/****************************************************************
+	 * Closes the connection. Queries still waiting on it are left to
+	 * time out.
+	 ***************************************************************/
+	private synchronized void close() {
+		if (closed) return;
+
+		closed = true;
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("Error closing upstream connection");
+		}
+
+		owner.closed(server, this);
+	}
+}
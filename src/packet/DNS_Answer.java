@@ -1,7 +1,5 @@
 package packet;
 
-import java.nio.charset.Charset;
-
 /********************************************************************
  * DNS Question
  * Project 3 - CIS 457-10
@@ -24,12 +22,15 @@ public class DNS_Answer {
 	 * from this answer's endIndex. */
 	private int endIndex;
 	
-	/** String representation of the NAME field. */
-	private String name;
+	/** Canonical form of the NAME field. */
+	private DNS_Name name;
 	
 	/** The type code for this answer.  */
 	private int TYPE;
 	
+	/** The class code for this answer. */
+	private int CLASS;
+	
 	/** The time to live in seconds for this answer. */
 	private int TTL;
 	
@@ -44,17 +45,6 @@ public class DNS_Answer {
 	/** Length of this section */
 	private int length;
 	
-	/** The offset generated from imputing foreign answers earlier
-	 * into this packet. */
-	private int off;
-	
-	/** The index of the end of the last answer native to this packet. */
-	private int from;
-	
-	/** Byte array containing up to date information about the new
-	 * answers being added to this packet. */
-	private byte[] updated;
-	
 	/** The value for A type, which is IPv4 */
 	public static final int A_TYPE = 1;
 	
@@ -63,24 +53,42 @@ public class DNS_Answer {
 	
 	public static final int CNAME_TYPE = 5;
 	
+	/** The value for SOA type */
+	public static final int SOA_TYPE = 6;
+	
+	/** The value for PTR type */
+	public static final int PTR_TYPE = 12;
+	
+	/** The value for MX type */
+	public static final int MX_TYPE = 15;
+	
+	/** The value for AAAA type, which is IPv6 */
+	public static final int AAAA_TYPE = 28;
+	
+	/** The value for the OPT pseudo type used by EDNS */
+	public static final int OPT_TYPE = 41;
+	
 	/** Bytes that make up the DNS header. */
 	private byte[] data;
 	
+	/** Number of bytes of the packet in the data array. */
+	private int limit;
+	
 	/****************************************************************
 	 * Constructor for the DNS_Header.
 	 * 
 	 * @param d byte array containing the entire DNS packet.
 	 * @param start the index where this section starts.
+	 * @param length number of bytes of the packet in the array.
+	 * @throws IllegalArgumentException if the section runs past the
+	 * end of the packet.
 	 ***************************************************************/
-	public DNS_Answer(byte[] d, int start) {
+	public DNS_Answer(byte[] d, int start, int length) {
 		data = d;
+		limit = length;
 		sIndex = start;
 		endIndex = start;
 		
-		from = Integer.MAX_VALUE;
-		off = 0;
-		updated = data;
-		
 		interpretData();
 	}
 
@@ -89,25 +97,27 @@ public class DNS_Answer {
 	 * endIndex.
 	 ***************************************************************/
 	private void interpretData() {		
-		findNameLength();
+		endIndex = DNS_Name.skip(data, sIndex);
+		
+		name = DNS_Name.read(data, sIndex);
 		
-		name = readNameField(sIndex);
+		if (endIndex + 10 > limit) throw malformed();
 				
-		TYPE = bytesToDecimal(
-				new byte[] {data[endIndex], data[endIndex + 1]});
+		TYPE = Wire_Format.readShort(data, endIndex);
 		endIndex += 2;
 		
+		CLASS = Wire_Format.readShort(data, endIndex);
 		endIndex += 2;
 		
-		TTL = bytesToDecimal(
-				new byte[] {data[endIndex], data[endIndex + 1], 
-							data[endIndex + 2], data[endIndex + 3]});
+		TTL = Wire_Format.readInt(data, endIndex);
 		endIndex +=4;
 		
-		RDLENGTH = bytesToDecimal(
-				new byte[] {data[endIndex], data[endIndex + 1]});
+		RDLENGTH = Wire_Format.readShort(data, endIndex);
 		endIndex += 2;
 		
+		/* Rejects RDATA which runs past the end of the packet. */
+		if (endIndex + RDLENGTH > limit) throw malformed();
+		
 		RDATA = interpretRDATA();
 		endIndex += RDLENGTH;
 		
@@ -145,197 +155,77 @@ public class DNS_Answer {
 		
 		/* Checks for NS or CNAME type */
 		else if (TYPE == NS_TYPE || TYPE == CNAME_TYPE) {
-			rdata = readNameField(rdataIndex);
+			rdata = DNS_Name.read(data, rdataIndex).toString();
 		}
 		
 		return rdata;
 	}
 	
 	/****************************************************************
-	 * Goes through the name field and find the end. The endIndex is
-	 * then set to the end of the name field.
-	 ***************************************************************/
-	private void findNameLength() {
-		
-		/* Loops through the entire packet from the start of
-		 * this answer. */
-		for (int i = sIndex; i < data.length; i++) {
-			
-			/* Breaks the loop when a 0 byte is found. */
-			if (data[i] == 0) {
-				endIndex ++;
-				break;
-			}
-			
-			// Converts current byte into binary to check for pointer
-			String bin = String.format("%8s", Integer.toBinaryString(
-					data[i] & 0xFF)).replace(' ', '0');
-
-			/* Checks for pointer */
-			if (bin.startsWith("11")) {
-				endIndex += 2;
-				break;
-			}
-			
-			endIndex ++;
-		}
-	}
-
-	/****************************************************************
-	 * Reads the name field and returns a string representation of it.
+	 * Calls the method which interprets the RDATA field and returns
+	 * its string. Blank string for all non A types.
 	 * 
-	 * @param index starting index of this name field.
-	 * @return string representation of the name field.
+	 * @return the String representation of the RDATA field.
 	 ***************************************************************/
-	private String readNameField(int index) {
-
-		String name = readNameField(index, "");
-		
-		if (name.endsWith("."))
-			name = name.substring(0, name.length() -1);
-		
-		return name;
+	public String getRDATA() {
+		return RDATA;
 	}
 
 	/****************************************************************
-	 * Reads the name field and returns a string representation of it.
-	 * 
-	 * @param index starting index of this name field.
-	 * @param name the name so far in the recursive call.
-	 * @return string representation of the name field.
+	 * @return the last index used by this object + 1
 	 ***************************************************************/
-	private String readNameField(int index, String name) {
-
-		int labelLen = data[index] & 0xFF;
-
-		if (labelLen == 0) {
-			return "";
-		} else {
-
-			// Converts current byte into binary to check for pointer
-			String bin = String.format("%8s", Integer.toBinaryString(
-					labelLen)).replace(' ', '0');
-
-			/* Checks for pointer */
-			if (bin.startsWith("11")) {
-
-				// Takes the last 6 bits of the first byte and the entire
-				// second byte in binary, converts it to decimal. The
-				// resulting integer is the number 
-				String binaryPtr = bin.substring(2);
-				binaryPtr += String.format("%8s", Integer.toBinaryString(
-						data[index + 1] & 0xFF)).replace(' ', '0');
-
-				int offset = Integer.parseInt(binaryPtr, 2);
-				
-				if (offset >= from ) {
-					updated[index + off] = (byte) Integer.parseInt(
-							("11" + binaryPtr.substring(0, 6)), 2);
-					updated[index + off + 1] = (byte) (Integer.parseInt(
-							binaryPtr.substring(6, 14), 2) + off);
-				}
-				
-				String gotFromPointer = readNameField(offset, name);
-
-				return gotFromPointer ;
-			}
-
-			byte[] fragment = new byte[labelLen];
-
-			// Populate fragment array
-			for (int k = index + 1; k < labelLen + index + 1; k++) {
-				fragment[k - (index + 1)] = data[k];
-			}
-
-			String label = new String(fragment, Charset.defaultCharset());
-
-			name += label + ".";
-
-			index += labelLen + 1;
-
-			return name += readNameField(index, "");
-		}
-
+	public int getEndIndex() {
+		return endIndex;
 	}
 	
 	/****************************************************************
-	 * Treats bytes given in the array as one hexadecimal number and
-	 * returns the decimal representation.
-	 * 
-	 * @param hex array of bytes to be treated as a single hex number.
-	 * @return the decimal representation of the given hex number.
+	 * @return the first index used by this section.
 	 ***************************************************************/
-	private int bytesToDecimal(byte[] hex) {
-		String str = "";
-		String buff = "00000000";		
-		
-		for (byte b : hex) {
-			String current = Integer.toBinaryString(b & 0xFF);
-			str += (buff + current).substring(current.length());
-			
-		}
-
-		return Integer.parseInt(str, 2);
+	public int getStartIndex() {
+		return sIndex;
 	}
 	
 	/****************************************************************
-	 * Sets the last index of the packet (+1).
-	 * 
-	 * @param index the index to set as the end index.
+	 * @return the code of this answer's type.
 	 ***************************************************************/
-	public void setEndIndex(int index) {
-		endIndex = index;
+	public int getType() {
+		return TYPE;
 	}
 	
 	/****************************************************************
-	 * Returns a byte array with updated pointers accounting for the
-	 * offset generated by adding information earlier in the packet.
-	 * 
-	 * @param offset the offset generated from imputing foreign 
-	 * answers earlier into this packet. 
-	 * @param from The index of the end of the last answer native 
-	 * to this packet. 
-	 * @param d up to date byte array containing the newly inserted 
-	 * information.
-	 * @return byte array with updated pointers.
+	 * @return the code of this answer's class.
 	 ***************************************************************/
-	public byte[] accountForOffest(int offset, int from, byte[] d) {
-		updated = d;
-		off = offset;
-		this.from = from;
-		readNameField(sIndex);
-		return updated;
+	public int getDNSClass() {
+		return CLASS;
 	}
 	
 	/****************************************************************
-	 * Calls the method which interprets the RDATA field and returns
-	 * its string. Blank string for all non A types.
-	 * 
-	 * @return the String representation of the RDATA field.
-	 ***************************************************************/
-	public String getRDATA() {
-		return RDATA;
-	}
-
-	/****************************************************************
-	 * @return the last index used by this object + 1
+	 * @return the length of the RDATA field.
 	 ***************************************************************/
-	public int getEndIndex() {
-		return endIndex;
+	public int getRDLENGTH() {
+		return RDLENGTH;
 	}
 	
 	/****************************************************************
-	 * @return the first index used by this section.
+	 * @return the index of the first byte of the RDATA field.
 	 ***************************************************************/
-	public int getStartIndex() {
-		return sIndex;
+	public int getRDataIndex() {
+		return endIndex - RDLENGTH;
 	}
 	
 	/****************************************************************
-	 * @return the code of this answer's type.
+	 * @return the MINIMUM field of an SOA record, which bounds how
+	 * long a negative answer may be cached, or -1 for other types.
 	 ***************************************************************/
-	public int getType() {
-		return TYPE;
+	public int getMinimum() {
+		if (TYPE != SOA_TYPE) return -1;
+		
+		int second = DNS_Name.skip(data, getRDataIndex());
+		int rest = DNS_Name.skip(data, second);
+		
+		if (rest + 20 > endIndex) return -1;
+		
+		return Wire_Format.readInt(data, rest + 16);
 	}
 	
 	/****************************************************************
@@ -356,6 +246,13 @@ public class DNS_Answer {
 	 * @return string representation of the NAME field. 
 	 ***************************************************************/
 	public String getName() {
+		return name.toString();
+	}
+	
+	/****************************************************************
+	 * @return canonical form of the NAME field. 
+	 ***************************************************************/
+	public DNS_Name getOwner() {
 		return name;
 	}
 	
@@ -365,4 +262,13 @@ public class DNS_Answer {
 	public byte[] getBytes() {
 		return data;
 	}
+	
+	/****************************************************************
+	 * @return exception describing a section which does not fit in
+	 * the packet.
+	 ***************************************************************/
+	private IllegalArgumentException malformed() {
+		return new IllegalArgumentException("Malformed record at " + 
+				sIndex);
+	}
 }
\ No newline at end of file
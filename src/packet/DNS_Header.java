@@ -4,8 +4,9 @@ package packet;
  * DNS Header
  * Project 3 - CIS 457-10
  * 
- * Object which interprets and contains the information stored in 
- * the DNS Packet header as variables for easy access.
+ * View over the header bytes of a DNS packet. Every field is read 
+ * from, and written to, the packet's bytes directly with shifts and
+ * masks, so creating a header allocates nothing.
  *
  * @author Tyler McCarthy
  * @author Megan Maher
@@ -16,54 +17,43 @@ package packet;
 public class DNS_Header {
 
 	/** The length of a DNS header field in bytes. */
-	protected final int LENGTH = 12;
+	protected static final int LENGTH = 12;
 	
-	/** A 16-bit identifier generated by the querying device. */
-	private String ID;
+	/** RCODE value for no error. */
+	public static final int NO_ERROR = 0;
+	
+	/** RCODE value for a name error meaning the name referenced in the 
+	 * query does not exist. */
+	public static final int NAME_ERROR = 3;
+	
+	/** RCODE value for a query the server could not make sense of. */
+	public static final int FORMAT_ERROR = 1;
+	
+	/** RCODE value for a server unable to process the query. */
+	public static final int SERVER_FAILURE = 2;
 	
-	private byte[] idArr;
+	/** RCODE value for a kind of query the server does not support. */
+	public static final int NOT_IMPLEMENTED = 4;
 	
-	/** Query/Response flag. 0 for query, 1 for response. */
-	private int QR;
+	/** RCODE value for a query the server refuses to answer. */
+	public static final int REFUSED = 5;
 	
-	/** 4-bit operation code. 0 for standard query. */
-	private int OPCODE;
+	/** Query/Response flag. 1 for response. */
+	private static final int QR = 0x8000;
 	
 	/** Authoritative Answer flag. 1 if the response is authoritative. */
-	private int AA;
+	private static final int AA = 0x0400;
 	
 	/** Truncation flag. 1 if message was truncated due
 	 *  to UDP size constraints. */
-	private int TC;
+	private static final int TC = 0x0200;
 	
 	/** Recursion Desired flag. 1 if recursion is desired. */
-	private int RD;
+	private static final int RD = 0x0100;
 	
 	/** Recursion Available flag. 1 if responding server
 	 *  supports recursion. */
-	private int RA;
-	
-	/** Response Code. Indicates if there was an error. 0 for no error. */
-	private int RCODE;
-	
-	/** Number of entries in the question section of the packet. */
-	private int QDCOUNT;
-	
-	/** Number of answers in the packet. */
-	private int ANCOUNT;
-	
-	/** Number of name servers in the packet. */
-	private int NSCOUNT;
-	
-	/** Number of entries in the addition records section of the packet. */
-	private int ARCOUNT;
-	
-	/** RCODE value for no error. */
-	public static final int NO_ERROR = 0;
-	
-	/** RCODE value for a name error meaning the name referenced in the 
-	 * query does not exist. */
-	public static final int NAME_ERROR = 3;
+	private static final int RA = 0x0080;
 	
 	/** Bytes that make up the entire DNS packet. */
 	private byte[] data;
@@ -75,82 +65,42 @@ public class DNS_Header {
 	 ***************************************************************/
 	public DNS_Header(byte[] d) {
 		data = d;
-		interpretData();
 	}
 	
 	/****************************************************************
-	 * Interprets the bits in the DNS Header.
+	 * Points this header at a new byte array after the packet's 
+	 * bytes have been replaced.
+	 * 
+	 * @param d byte array containing the DNS packet.
 	 ***************************************************************/
-	private void interpretData() {
-		
-		/* First 16 bits are the ID */
-		ID = Integer.toBinaryString(data[0] & 0xFF) +
-				Integer.toBinaryString(data[1] & 0xFF);
-		int id = Integer.parseInt(ID, 2);
-		ID = Integer.toString(id);
-		idArr = new byte[]{data[0], data[1]};
-		
-		/* Next 16 bits are the FLAGS */
-		handleFlags();
-		
-		/* Next 16 bits tell the number of QUESTIONS */
-		QDCOUNT = hexBytesToDecimal(new byte[]{data[4], data[5]});
-		
-		/* Next 16 bits tell the number of ANSWERS */
-		ANCOUNT = hexBytesToDecimal(new byte[]{data[6], data[7]});
-		
-		/* Next 16 bits tell the number of NAME SERVERS */
-		NSCOUNT = hexBytesToDecimal(new byte[]{data[8], data[9]});
-		
-		/* Next 16 bits tell the number of ADDITIONAL records */
-		ARCOUNT = hexBytesToDecimal(new byte[]{data[10], data[11]});
+	void setData(byte[] d) {
+		data = d;
 	}
 	
 	/****************************************************************
-	 * Interprets the second two bytes of the DNS packet header 
-	 * containing different flags and codes.
+	 * @return the 16 bits following the ID, containing the flags
+	 * and codes.
 	 ***************************************************************/
-	private void handleFlags() {
-		byte b1 = data[2];
-		byte b2 = data[3];
-		
-		// First and second flag byte as binary strings
-		String s1 = Integer.toString(b1 & 0xFF, 2);
-		String s2 = Integer.toString(b2 & 0xFF, 2);
-		String buff = "00000000";
-		
-		// Combines the two flag bytes into one binary string. The
-		// substring call is used so that each byte has length 8 
-		// with leading zeros.
-		String binaryFlags = (buff + s1).substring(s1.length()) + 
-					   (buff + s2).substring(s2.length());
-				
-		// Set flags from the binary string
-		QR  = Character.getNumericValue(binaryFlags.charAt(0));
-		OPCODE = Integer.valueOf(binaryFlags.substring(1, 5), 2);
-		AA = Character.getNumericValue(binaryFlags.charAt(5));
-		TC = Character.getNumericValue(binaryFlags.charAt(6));
-		RD = Character.getNumericValue(binaryFlags.charAt(7));
-		RA = Character.getNumericValue(binaryFlags.charAt(8));
-		RCODE = Integer.valueOf(binaryFlags.substring(12, 16), 2);
-
+	private int getFlags() {
+		return Wire_Format.readShort(data, 2);
 	}
 	
 	/****************************************************************
-	 * Treats bytes given in the array as one hexadecimal number and
-	 * returns the decimal representation.
+	 * Sets or clears one of the flag bits.
 	 * 
-	 * @param hex array of bytes to be treated as a single hex number.
-	 * @return the decimal representation of the given hex number.
+	 * @param mask the bit to change.
+	 * @param set true if the bit is to be set to 1.
 	 ***************************************************************/
-	private int hexBytesToDecimal(byte[] hex) {
-		String str = "";
-				
-		for (byte b : hex) {
-			str += Integer.toHexString(b & 0xFF);
+	private void setFlag(int mask, boolean set) {
+		int flags = getFlags();
+		
+		if (set) {
+			flags |= mask;
+		} else {
+			flags &= ~mask;
 		}
 		
-		return Integer.parseInt(str, 16);
+		Wire_Format.writeShort(data, 2, flags);
 	}
 	
 	/****************************************************************
@@ -160,14 +110,31 @@ public class DNS_Header {
 	 * @return ID number of the device that initiated the DNS query.
 	 ***************************************************************/
 	public String getID() {
-		return ID;
+		return Integer.toString(Wire_Format.readShort(data, 0));
 	}	
 	
 	/****************************************************************
 	 * @return the response code for this packet header.
 	 ***************************************************************/
 	public int getRCODE() {
-		return RCODE;
+		return getFlags() & 0x000F;
+	}
+	
+	/****************************************************************
+	 * Sets the response code of this packet header.
+	 * 
+	 * @param rcode the response code.
+	 ***************************************************************/
+	public void setRCODE(int rcode) {
+		Wire_Format.writeShort(data, 2, (getFlags() & ~0x000F) | 
+				(rcode & 0x000F));
+	}
+	
+	/****************************************************************
+	 * @return the operation code for this packet header.
+	 ***************************************************************/
+	public int getOPCODE() {
+		return (getFlags() >> 11) & 0x000F;
 	}
 
 	/****************************************************************
@@ -177,7 +144,7 @@ public class DNS_Header {
 	 * @return number of entries in the question section of the packet. 
 	 ***************************************************************/
 	public int getQDCOUNT() {
-		return QDCOUNT;
+		return Wire_Format.readShort(data, 4);
 	}
 	
 	/****************************************************************
@@ -186,7 +153,7 @@ public class DNS_Header {
 	 * @return number of answers in the packet. 
 	 ***************************************************************/
 	public int getANCOUNT() {
-		return ANCOUNT;
+		return Wire_Format.readShort(data, 6);
 	}
 	
 	/****************************************************************
@@ -195,7 +162,7 @@ public class DNS_Header {
 	 * @param count number of answers in this packet.
 	 ***************************************************************/
 	public void setANCOUNT(int count) {
-		ANCOUNT = count;
+		Wire_Format.writeShort(data, 6, count);
 	}
 	
 	/****************************************************************
@@ -204,7 +171,7 @@ public class DNS_Header {
 	 * @return number of name servers in the packet. 
 	 ***************************************************************/
 	public int getNSCOUNT() {
-		return NSCOUNT;
+		return Wire_Format.readShort(data, 8);
 	}
 	
 	/****************************************************************
@@ -215,7 +182,24 @@ public class DNS_Header {
 	 * of the packet. 
 	 ***************************************************************/
 	public int getARCOUNT() {
-		return ARCOUNT;
+		return Wire_Format.readShort(data, 10);
+	}
+	
+	/****************************************************************
+	 * @return true if the TC flag is set, marking a reply which did
+	 * not fit in a UDP packet and should be asked for again over TCP.
+	 ***************************************************************/
+	public boolean isTruncated() {
+		return (getFlags() & TC) != 0;
+	}
+	
+	/****************************************************************
+	 * Sets the Truncation flag according to the parameter.
+	 * 
+	 * @param truncated true if the TC flag is to be set to 1.
+	 ***************************************************************/
+	public void setTruncated(boolean truncated) {
+		setFlag(TC, truncated);
 	}
 	
 	/****************************************************************
@@ -225,21 +209,7 @@ public class DNS_Header {
 	 * @param flag tells if recursion is desired. 
 	 ***************************************************************/
 	public void setRecursionDesired(boolean desired) {
-		
-		byte flag1 = data[2];
-		String bin = String.format("%8s", Integer.toBinaryString(
-				flag1 & 0xFF)).replace(' ', '0');
-		
-		if (desired) {
-			RD = 1;
-		} else{
-			RD = 0;
-		}
-		
-		bin = bin.substring(0, 7) + RD;
-		short f = Short.parseShort(bin, 2);
-		flag1 = (byte) f;
-		data[2] = flag1;
+		setFlag(RD, desired);
 	}
 	
 	/****************************************************************
@@ -249,43 +219,43 @@ public class DNS_Header {
 	 * @param response true if the QR flag is to be set to 1
 	 ***************************************************************/
 	public void setQR(boolean response) {
-		byte flag1 = data[2];
-		String bin = String.format("%8s", Integer.toBinaryString(
-				flag1 & 0xFF)).replace(' ', '0');
-		
-		if (response) {
-			QR = 1;
-		} else{
-			QR = 0;
-		}
-		
-		bin = QR + bin.substring(1, 8);
-		short f = Short.parseShort(bin, 2);
-		flag1 = (byte) f;
-		data[2] = flag1;
+		setFlag(QR, response);
+	}
+	
+	/****************************************************************
+	 * @return true if the QR flag is set, marking a response.
+	 ***************************************************************/
+	public boolean isResponse() {
+		return (getFlags() & QR) != 0;
 	}
 	
 	/****************************************************************
 	 * @return the id of this packet represented as bytes.
 	 ***************************************************************/
 	public byte[] getIdArr() {
-		return idArr;
+		return new byte[] {data[0], data[1]};
 	}
 	
 	public String toString() {
+		int flags = getFlags();
 		String message = "Flags:";
 		
-		if (QR == 1) message += " QR";
-		if (AA == 1) message += " AA";
-		if (TC == 1) message += " TC";
-		if (RD == 1) message += " RD";
-		if (RA == 1) message += " RA";
+		if ((flags & QR) != 0) message += " QR";
+		if ((flags & AA) != 0) message += " AA";
+		if ((flags & TC) != 0) message += " TC";
+		if ((flags & RD) != 0) message += " RD";
+		if ((flags & RA) != 0) message += " RA";
 		
-		message += "; Queries: " + QDCOUNT + ", Answers: " + ANCOUNT;
-		message += ", Authority: " + NSCOUNT + ", Additional: " + ARCOUNT;
+		message += "; Queries: " + getQDCOUNT();
+		message += ", Answers: " + getANCOUNT();
+		message += ", Authority: " + getNSCOUNT();
+		message += ", Additional: " + getARCOUNT();
 		
 		message += "\nOpcode: ";
 		
+		int OPCODE = getOPCODE();
+		int RCODE = getRCODE();
+		
 		if (OPCODE == 0) message += "Query";
 		else message += OPCODE;
 		
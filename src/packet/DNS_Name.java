@@ -0,0 +1,337 @@
+package packet;
+
+import java.util.Arrays;
+
+/********************************************************************
+ * DNS Name
+ *
+ * A domain name in canonical form: its labels in lower case, stored
+ * uncompressed as they appear on the wire. The hash is computed once
+ * and names are interned, so the same name read from many packets
+ * is usually the same object and compares and hashes cheaply.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public final class DNS_Name {
+
+	/** Longest a name may be on the wire, including length bytes. */
+	public static final int MAX_LENGTH = 255;
+
+	/** Most compression pointers followed while reading one name. */
+	public static final int MAX_HOPS = 32;
+
+	/** Number of slots in the intern table. Must be a power of 2. */
+	private static final int TABLE_SIZE = 1 << 16;
+
+	/** Recently seen names, indexed by hash. A slot is overwritten
+	 * when a different name with the same index is interned, so the
+	 * table never grows. */
+	private static final DNS_Name[] table = new DNS_Name[TABLE_SIZE];
+
+	/** Buffer each thread decodes names into before interning. */
+	private static final ThreadLocal<byte[]> scratch =
+			new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[MAX_LENGTH];
+		}
+	};
+
+	/** The root name. */
+	public static final DNS_Name ROOT = intern(new byte[] {0}, 0, 1);
+
+	/** Labels of this name in lower case, ending with a 0 byte. */
+	private final byte[] wire;
+
+	/** Hash of the wire bytes. */
+	private final int hash;
+
+	/** Dotted representation of this name, without a trailing dot. */
+	private final String text;
+
+	/****************************************************************
+	 * Constructor for DNS_Name.
+	 *
+	 * @param wire canonical wire bytes of the name.
+	 * @param hash hash of the wire bytes.
+	 ***************************************************************/
+	private DNS_Name(byte[] wire, int hash) {
+		this.wire = wire;
+		this.hash = hash;
+
+		StringBuilder sb = new StringBuilder(wire.length);
+		int i = 0;
+
+		while (wire[i] != 0) {
+			if (sb.length() > 0) sb.append('.');
+
+			int len = wire[i];
+			for (int k = i + 1; k <= i + len; k++) {
+				sb.append((char) (wire[k] & 0xFF));
+			}
+
+			i += len + 1;
+		}
+
+		text = sb.toString();
+	}
+
+	/****************************************************************
+	 * Reads the possibly compressed name starting at the given index
+	 * of a packet. Compression pointers are followed iteratively and
+	 * at most MAX_HOPS of them are allowed, so a pointer loop cannot
+	 * run forever.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the name.
+	 * @return the canonical name.
+	 * @throws IllegalArgumentException if the name is malformed.
+	 ***************************************************************/
+	public static DNS_Name read(byte[] data, int index) {
+		byte[] buf = scratch.get();
+		int len = 0;
+		int pos = index;
+		int hops = 0;
+
+		while (true) {
+			if (pos >= data.length) throw malformed(index);
+
+			int b = data[pos] & 0xFF;
+
+			if (b == 0) {
+				buf[len++] = 0;
+				break;
+			}
+
+			/* Checks for pointer */
+			if ((b & 0xC0) == 0xC0) {
+				if (pos + 1 >= data.length || ++hops > MAX_HOPS) {
+					throw malformed(index);
+				}
+
+				pos = ((b & 0x3F) << 8) | (data[pos + 1] & 0xFF);
+				continue;
+			}
+
+			if ((b & 0xC0) != 0 || len + b + 2 > MAX_LENGTH ||
+					pos + b >= data.length) {
+				throw malformed(index);
+			}
+
+			buf[len++] = (byte) b;
+
+			for (int k = pos + 1; k <= pos + b; k++) {
+				buf[len++] = lower(data[k]);
+			}
+
+			pos += b + 1;
+		}
+
+		return intern(buf, 0, len);
+	}
+
+	/****************************************************************
+	 * Returns the index just past the name starting at the given
+	 * index, without following compression pointers.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the name.
+	 * @return index of the first byte after the name.
+	 * @throws IllegalArgumentException if the name is malformed.
+	 ***************************************************************/
+	public static int skip(byte[] data, int index) {
+		int pos = index;
+
+		while (pos < data.length) {
+			int b = data[pos] & 0xFF;
+
+			if (b == 0) return pos + 1;
+			if ((b & 0xC0) == 0xC0) return pos + 2;
+			if ((b & 0xC0) != 0) break;
+
+			pos += b + 1;
+		}
+
+		throw malformed(index);
+	}
+
+	/****************************************************************
+	 * Returns the canonical name for a dotted string, such as
+	 * "www.example.com" or "www.example.com.".
+	 *
+	 * @param name dotted representation of the name.
+	 * @return the canonical name.
+	 * @throws IllegalArgumentException if the name is too long.
+	 ***************************************************************/
+	public static DNS_Name of(String name) {
+		byte[] buf = scratch.get();
+		int len = 0;
+		int start = 0;
+
+		while (start < name.length()) {
+			int end = name.indexOf('.', start);
+			if (end < 0) end = name.length();
+
+			int labelLen = end - start;
+
+			if (labelLen > 63 || len + labelLen + 2 > MAX_LENGTH) {
+				throw new IllegalArgumentException("Name too long: " + name);
+			}
+
+			if (labelLen > 0) {
+				buf[len++] = (byte) labelLen;
+
+				for (int i = start; i < end; i++) {
+					buf[len++] = lower((byte) name.charAt(i));
+				}
+			}
+
+			start = end + 1;
+		}
+
+		buf[len++] = 0;
+
+		return intern(buf, 0, len);
+	}
+
+	/****************************************************************
+	 * Returns the interned name made up of the given canonical wire
+	 * bytes, creating it if it is not already in the table.
+	 *
+	 * @param buf array holding the wire bytes.
+	 * @param off index of the first byte.
+	 * @param len number of bytes.
+	 * @return the interned name.
+	 ***************************************************************/
+	private static DNS_Name intern(byte[] buf, int off, int len) {
+		int h = 1;
+
+		for (int i = off; i < off + len; i++) {
+			h = 31 * h + buf[i];
+		}
+
+		int slot = (h ^ (h >>> 16)) & (TABLE_SIZE - 1);
+		DNS_Name found = table[slot];
+
+		if (found != null && found.hash == h && found.wire.length == len &&
+				equalRange(found.wire, buf, off, len)) {
+			return found;
+		}
+
+		DNS_Name name = new DNS_Name(Arrays.copyOfRange(buf, off, off + len), h);
+		table[slot] = name;
+		return name;
+	}
+
+	/****************************************************************
+	 * @return true if a equals the given range of b.
+	 ***************************************************************/
+	private static boolean equalRange(byte[] a, byte[] b, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[i] != b[off + i]) return false;
+		}
+
+		return true;
+	}
+
+	/****************************************************************
+	 * @return the byte in lower case if it is an upper case letter.
+	 ***************************************************************/
+	private static byte lower(byte b) {
+		if (b >= 'A' && b <= 'Z') return (byte) (b + 32);
+		return b;
+	}
+
+	/****************************************************************
+	 * @return exception describing a malformed name.
+	 ***************************************************************/
+	private static IllegalArgumentException malformed(int index) {
+		return new IllegalArgumentException("Malformed name at " + index);
+	}
+
+	/****************************************************************
+	 * @return the name with the first label removed, or null if this
+	 * is the root.
+	 ***************************************************************/
+	public DNS_Name parent() {
+		if (wire[0] == 0) return null;
+
+		int skip = wire[0] + 1;
+		return intern(wire, skip, wire.length - skip);
+	}
+
+	/****************************************************************
+	 * @return number of labels in this name, not counting the root.
+	 ***************************************************************/
+	public int labelCount() {
+		int count = 0;
+
+		for (int i = 0; wire[i] != 0; i += wire[i] + 1) {
+			count++;
+		}
+
+		return count;
+	}
+
+	/****************************************************************
+	 * @param zone name of a zone.
+	 * @return true if this name is the zone or a name below it.
+	 ***************************************************************/
+	public boolean isWithin(DNS_Name zone) {
+		int skip = labelCount() - zone.labelCount();
+		DNS_Name n = this;
+
+		for (int i = 0; i < skip; i++) {
+			n = n.parent();
+		}
+
+		return skip >= 0 && n.equals(zone);
+	}
+
+	/****************************************************************
+	 * @return number of bytes this name takes uncompressed.
+	 ***************************************************************/
+	public int length() {
+		return wire.length;
+	}
+
+	/****************************************************************
+	 * @return a copy of the canonical wire bytes, which read returns
+	 * this name for.
+	 ***************************************************************/
+	public byte[] toBytes() {
+		return wire.clone();
+	}
+	
+	/****************************************************************
+	 * @return the canonical wire bytes. Must not be modified.
+	 ***************************************************************/
+	byte[] getWire() {
+		return wire;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof DNS_Name)) return false;
+
+		DNS_Name other = (DNS_Name) o;
+		return hash == other.hash && Arrays.equals(wire, other.wire);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/****************************************************************
+	 * @return the name in dotted form without a trailing dot. The
+	 * root is the empty string.
+	 ***************************************************************/
+	public String toString() {
+		return text;
+	}
+}
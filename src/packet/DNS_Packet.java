@@ -3,6 +3,7 @@ package packet;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /********************************************************************
  * DNS Packet
@@ -19,6 +20,10 @@ import java.util.ArrayList;
  *******************************************************************/
 public class DNS_Packet {
 
+	/** Largest reply that may be sent over UDP to a client which
+	 * does not say it can take more. */
+	public static final int UDP_SIZE = 512;
+
 	/** This packet's header */
 	private DNS_Header header;
 	
@@ -27,10 +32,14 @@ public class DNS_Packet {
 	
 	/** List of all this packet's responses. */
 	private ArrayList<DNS_Answer> responses;
-		
-	/** The index of the last index used by the last answer that
-	 * was created by this packet's constructor. */
-	private int lastNativeAnsw;
+	
+	/** Builder each thread uses when rewriting a packet. */
+	private static final ThreadLocal<DNS_Packet_Builder> builders = 
+			new ThreadLocal<DNS_Packet_Builder>() {
+		protected DNS_Packet_Builder initialValue() {
+			return new DNS_Packet_Builder();
+		}
+	};
 	
 	/** Byte array containing the byte representation of this packet. */
 	private byte[] data;
@@ -66,6 +75,23 @@ public class DNS_Packet {
 		createResponses();		
 	}
 	
+	/****************************************************************
+	 * Creates a query with a single question and no flags set.
+	 * 
+	 * @param name name to ask about.
+	 * @param type QTYPE of the question.
+	 * @param dnsClass QCLASS of the question.
+	 * @return the query.
+	 ***************************************************************/
+	public static DNS_Packet newQuery(DNS_Name name, int type, 
+			int dnsClass) {
+		DNS_Packet_Builder builder = builders.get().reset();
+		builder.writeHeader(new byte[4]);
+		builder.writeQuestion(name, type, dnsClass);
+		
+		return builder.build();
+	}
+	
 	/****************************************************************
 	 * Generates DNS_Answer objects from the byte array.
 	 ***************************************************************/
@@ -74,29 +100,22 @@ public class DNS_Packet {
 		int numResponses = header.getANCOUNT() + header.getNSCOUNT() + 
 				header.getARCOUNT();
 		
-		lastNativeAnsw = 0;
-		
 		if (numResponses > 0) {
 			
-			int index = header.LENGTH;
-			
+			int index = DNS_Header.LENGTH;
+			int limit = Math.min(dataLength, data.length);
+						
 			if (!questions.isEmpty()) {
 				index = questions.get(questions.size()-1).getEndIndex();
 			}
 			
 			
 			for (int i = 0; i < numResponses; i++) {
-				DNS_Answer answer = new DNS_Answer(data, index);
+				DNS_Answer answer = new DNS_Answer(data, index, limit);
 				index = answer.getEndIndex();
 				responses.add(answer);
 			}
 		}
-		
-		if (header.getANCOUNT() > 0) {
-			lastNativeAnsw = 
-					responses.get(header.getANCOUNT() - 1).getEndIndex();
-		}
-		
 	}
 	
 	/****************************************************************
@@ -107,7 +126,7 @@ public class DNS_Packet {
 		int numQuestions = header.getQDCOUNT();
 		questions = new ArrayList<DNS_Question>();
 		
-		int endIndex = header.LENGTH;
+		int endIndex = DNS_Header.LENGTH;
 		for (int i = 0; i < numQuestions; i++) {
 			DNS_Question q = new DNS_Question(data, endIndex);
 			questions.add(q);
@@ -136,12 +155,8 @@ public class DNS_Packet {
 	 * @param name name to be set for this packet's question.
 	 ***************************************************************/
 	public void setQuestionName(String name) {
-		int size = data.length;
-		DNS_Question q = questions.get(0);
-		q.setName(name);
-		data = q.getData();
-		size = data.length - size;
-		dataLength += size;
+		rewrite(DNS_Name.of(name), new ArrayList<DNS_Answer>(), 
+				new ArrayList<DNS_Answer>());
 	}
 	
 	/****************************************************************
@@ -167,6 +182,13 @@ public class DNS_Packet {
 		return header;
 	}
 	
+	/****************************************************************
+	 * @return list of questions in this packet.
+	 ***************************************************************/
+	public ArrayList<DNS_Question> getQuestions() {
+		return questions;
+	}
+	
 	/****************************************************************
 	 * @return list of responses in this packet.
 	 ***************************************************************/
@@ -222,60 +244,175 @@ public class DNS_Packet {
 	}
 	
 	/****************************************************************
-	 * Adds the given DNS_Answer to this packet. The answer is added
-	 * after the last answer type in the packet.
+	 * Adds the given answers to this packet after its own answers.
+	 * The packet is written again once with all of the answers, so
+	 * adding a whole CNAME chain costs one pass over the packet.
+	 * 
+	 * @param extra answers to be inserted to this packet.
+	 ***************************************************************/
+	public void addAnswers(ArrayList<DNS_Answer> extra) {
+		rewrite(null, new ArrayList<DNS_Answer>(), extra);
+	}
+	
+	/****************************************************************
+	 * Makes this packet the reply for the start of a CNAME chain 
+	 * which leads to it: the name of the first question is replaced
+	 * and the links of the chain are put before this packet's own
+	 * answers. The RCODE and authority section are kept, so a chain
+	 * ending in a name that does not exist is still an NXDOMAIN.
 	 * 
-	 * @param answ answer object to be inserted to this packet.
+	 * @param qname name at the start of the chain.
+	 * @param links CNAME records of the chain, in order.
 	 ***************************************************************/
-	public void addAnswer(DNS_Answer answ) {	
-		ArrayList<Byte> byteList = new ArrayList<Byte>();
+	public void addChain(DNS_Name qname, ArrayList<DNS_Answer> links) {
+		rewrite(qname, links, new ArrayList<DNS_Answer>());
+	}
+	
+	/****************************************************************
+	 * Follows the CNAME records in the answer section from the name
+	 * of the first question to the end of the chain.
+	 * 
+	 * @return the name the chain ends at, which is the name of the
+	 * question if there is no CNAME for it.
+	 ***************************************************************/
+	public DNS_Name getChainEnd() {
+		DNS_Name name = questions.get(0).getQName();
+		ArrayList<DNS_Answer> answers = getAnswers();
+		
+		/* A chain cannot have more links than there are answers, so
+		 * a loop of CNAMEs ends. */
+		for (int hops = 0; hops < answers.size(); hops++) {
+			DNS_Name next = null;
+			
+			for (DNS_Answer answ : answers) {
+				if (answ.getType() == DNS_Answer.CNAME_TYPE && 
+						answ.getOwner().equals(name)) {
+					next = DNS_Name.read(answ.getBytes(), 
+							answ.getRDataIndex());
+					break;
+				}
+			}
+			
+			if (next == null) break;
+			
+			name = next;
+		}
 		
-		/* Converts byte array to an ArrayList of type Byte */
-		for (byte b : data) {
-			byteList.add(new Byte(b));
+		return name;
+	}
+	
+	/****************************************************************
+	 * Checks if the answer section has a record of the given type 
+	 * for the given name.
+	 * 
+	 * @param owner name the record belongs to.
+	 * @param type TYPE of the record.
+	 * @return true if there is such a record.
+	 ***************************************************************/
+	public boolean hasAnswer(DNS_Name owner, int type) {
+		for (DNS_Answer answ : getAnswers()) {
+			if (answ.getType() == type && answ.getOwner().equals(owner)) {
+				return true;
+			}
 		}
 		
-		int start = questions.get(0).getEndIndex();
+		return false;
+	}
+	
+	/****************************************************************
+	 * Writes this packet again with the builder and parses the 
+	 * result, optionally replacing the name of the first question 
+	 * and adding answers.
+	 * 
+	 * @param qname name for the first question, or null to keep it.
+	 * @param before answers to add before this packet's answers.
+	 * @param extra answers to add after this packet's answers.
+	 ***************************************************************/
+	private void rewrite(DNS_Name qname, ArrayList<DNS_Answer> before, 
+			ArrayList<DNS_Answer> extra) {
+		DNS_Packet_Builder builder = builders.get().reset();
+		builder.writeHeader(data);
 		
-		if (header.getANCOUNT() > 0)
-			start = responses.get(header.getANCOUNT() - 1).getEndIndex();
-		int length = answ.getLength();
+		for (DNS_Question q : questions) {
+			DNS_Name name = q.getQName();
+			
+			if (qname != null) {
+				name = qname;
+				qname = null;
+			}
+			
+			builder.writeQuestion(name, q.getQTYPE(), q.getQCLASS());
+		}
 		
-		byte[] answArr = new byte[length];
-		byte[] totalAnsw = answ.getBytes();
+		int numAnswers = header.getANCOUNT();
+		int numAuthority = header.getNSCOUNT();
 		
-		for (int i = 0; i < answArr.length; i++) {
-			answArr[i] = totalAnsw[i + answ.getStartIndex()];
+		for (DNS_Answer answ : before) {
+			builder.writeRecord(DNS_Packet_Builder.ANSWER, answ);
 		}
 		
-		for (byte b : answArr) {
-			byteList.add(start, new Byte(b));
-			start++;
+		for (int i = 0; i < numAnswers; i++) {
+			builder.writeRecord(DNS_Packet_Builder.ANSWER, responses.get(i));
 		}
 		
-		data = new byte[byteList.size()];
+		for (DNS_Answer answ : extra) {
+			builder.writeRecord(DNS_Packet_Builder.ANSWER, answ);
+		}
 		
-		for (int i = 0; i < byteList.size(); i++) {
-			data[i] = byteList.get(i).byteValue();
+		for (int i = numAnswers; i < responses.size(); i++) {
+			int section = DNS_Packet_Builder.ADDITIONAL;
+			
+			if (i < numAnswers + numAuthority) {
+				section = DNS_Packet_Builder.AUTHORITY;
+			}
+			
+			builder.writeRecord(section, responses.get(i));
 		}
 		
-		answ.setEndIndex(start + length);
+		data = builder.toBytes();
+		dataLength = data.length;
+		header.setData(data);
 		
-		responses.add(header.getANCOUNT(), answ);
-				
-		for (DNS_Answer a : responses) {
-			data = a.accountForOffest(length, lastNativeAnsw, data);
+		createQuestions();
+		createResponses();
+	}
+	
+	/****************************************************************
+	 * Returns the SOA record in the authority section, which is how
+	 * a server marks a reply as a negative answer rather than a 
+	 * referral.
+	 * 
+	 * @return the SOA record, or null if there is none.
+	 ***************************************************************/
+	public DNS_Answer getAuthoritySOA() {
+		int start = header.getANCOUNT();
+		int end = Math.min(start + header.getNSCOUNT(), responses.size());
+		
+		for (int i = start; i < end; i++) {
+			DNS_Answer answ = responses.get(i);
+			
+			if (answ.getType() == DNS_Answer.SOA_TYPE) {
+				return answ;
+			}
 		}
-				
-		/* Change the number of answers. */
-		String bin = String.format("%16s", Integer.toBinaryString(
-				(header.getANCOUNT() + 1) & 0xFF)).replace(' ', '0');
 		
-		data[6] = (byte) Integer.parseInt(bin.substring(0, 8), 2);
-		data[7] = (byte) Integer.parseInt(bin.substring(8, 16), 2);
-		header.setANCOUNT(header.getANCOUNT() + 1);
+		return null;
+	}
+	
+	/****************************************************************
+	 * Checks if this packet says the name does not exist (NXDOMAIN)
+	 * or has no records of the type asked for (NODATA).
+	 * 
+	 * @return true if this packet is a negative answer.
+	 ***************************************************************/
+	public boolean isNegative() {
+		if (!header.isResponse() || header.getANCOUNT() > 0) return false;
+		
+		int rcode = header.getRCODE();
+		
+		if (rcode == DNS_Header.NAME_ERROR) return true;
 		
-		dataLength += answ.getLength();
+		return rcode == DNS_Header.NO_ERROR && getAuthoritySOA() != null;
 	}
 	
 	/****************************************************************
@@ -301,6 +438,128 @@ public class DNS_Packet {
 		return answers;
 	}
 	
+	/****************************************************************
+	 * Returns the NS records of a referral which a server asked about
+	 * a zone may be trusted for: those for the zone or a zone below
+	 * it which the name asked about is in. Any other NS record is for
+	 * a zone the server has no say over.
+	 * 
+	 * @param zone the zone the server was asked about.
+	 * @param name the name asked about.
+	 * @return the NS records which may be trusted.
+	 ***************************************************************/
+	public ArrayList<DNS_Answer> getReferral(DNS_Name zone, DNS_Name name) {
+		ArrayList<DNS_Answer> referral = new ArrayList<DNS_Answer>();
+		
+		for (DNS_Answer answ : getAnswers(DNS_Answer.NS_TYPE)) {
+			DNS_Name owner = answ.getOwner();
+			
+			if (owner.isWithin(zone) && name.isWithin(owner)) {
+				referral.add(answ);
+			}
+		}
+		
+		return referral;
+	}
+	
+	/****************************************************************
+	 * @return the largest reply the sender of this query can take
+	 * over UDP: the payload size in its EDNS OPT record, if it has
+	 * one, and never less than UDP_SIZE.
+	 ***************************************************************/
+	public int getUDPSize() {
+		for (DNS_Answer answ : responses) {
+			if (answ.getType() == DNS_Answer.OPT_TYPE) {
+				return Math.max(UDP_SIZE, answ.getDNSClass());
+			}
+		}
+		
+		return UDP_SIZE;
+	}
+	
+	/****************************************************************
+	 * Cuts a reply down to its header and question, with the TC flag
+	 * set, telling the client to ask again over TCP for the rest.
+	 * 
+	 * @param data bytes of the reply.
+	 * @param length number of bytes used in the data array.
+	 * @return bytes of the truncated reply.
+	 ***************************************************************/
+	public static byte[] truncate(byte[] data, int length) {
+		byte[] cut = cutToQuestion(data, length);
+		new DNS_Header(cut).setTruncated(true);
+		
+		return cut;
+	}
+	
+	/****************************************************************
+	 * Makes the reply to a query which cannot be answered: the query's
+	 * header and first question, marked as a response with the given
+	 * RCODE.
+	 * 
+	 * @param data bytes of the query.
+	 * @param length number of bytes used in the data array.
+	 * @param rcode the RCODE of the reply.
+	 * @return bytes of the reply.
+	 ***************************************************************/
+	public static byte[] errorReply(byte[] data, int length, int rcode) {
+		byte[] reply = cutToQuestion(data, length);
+		DNS_Header header = new DNS_Header(reply);
+		header.setQR(true);
+		header.setRCODE(rcode);
+		
+		return reply;
+	}
+	
+	/****************************************************************
+	 * Writes the question of a query over the question of a reply to
+	 * it, so the reply echoes the query's question byte for byte,
+	 * with the letters of the name in the case the client sent them.
+	 * Nothing is copied unless both questions take the same number of
+	 * bytes, which they do whenever they ask about the same name.
+	 * 
+	 * @param query bytes of the query.
+	 * @param reply bytes of the reply, with its question first.
+	 ***************************************************************/
+	public static void echoQuestion(byte[] query, byte[] reply) {
+		int end = DNS_Name.skip(query, DNS_Header.LENGTH);
+		
+		if (end != DNS_Name.skip(reply, DNS_Header.LENGTH) ||
+				query[end - 1] != 0 || end + 4 > reply.length) {
+			return;
+		}
+		
+		System.arraycopy(query, DNS_Header.LENGTH, reply, 
+				DNS_Header.LENGTH, end + 4 - DNS_Header.LENGTH);
+	}
+	
+	/****************************************************************
+	 * Copies a packet's header and first question, with the counts
+	 * of every other section set to 0.
+	 * 
+	 * @param data bytes of the packet.
+	 * @param length number of bytes used in the data array.
+	 * @return bytes of the header and question.
+	 ***************************************************************/
+	private static byte[] cutToQuestion(byte[] data, int length) {
+		int end = DNS_Header.LENGTH;
+		int questions = Math.min(1, Wire_Format.readShort(data, 4));
+		
+		if (questions > 0) {
+			end = DNS_Name.skip(data, end) + 4;
+		}
+		
+		byte[] cut = Arrays.copyOf(data, Math.min(end, length));
+		
+		/* Leaves only the question. */
+		Wire_Format.writeShort(cut, 4, questions);
+		Wire_Format.writeShort(cut, 6, 0);
+		Wire_Format.writeShort(cut, 8, 0);
+		Wire_Format.writeShort(cut, 10, 0);
+		
+		return cut;
+	}
+	
 	/****************************************************************
 	 * @return string array of the final answers found in this packet.
 	 ***************************************************************/
@@ -0,0 +1,289 @@
+package packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/********************************************************************
+ * DNS Packet Builder
+ *
+ * Writes a DNS packet front to back into a growable buffer: the
+ * header, then questions, then answer, authority and additional
+ * records, in that order. Names are compressed as they are written
+ * by pointing at the earlier copy of any suffix already in the
+ * packet. A builder can be reset and reused for the next packet.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public class DNS_Packet_Builder {
+
+	/** Section number of the answer records. */
+	public static final int ANSWER = 1;
+
+	/** Section number of the authority records. */
+	public static final int AUTHORITY = 2;
+
+	/** Section number of the additional records. */
+	public static final int ADDITIONAL = 3;
+
+	/** Initial size of the buffer. */
+	private final int INITIAL_SIZE = 512;
+
+	/** Largest offset a compression pointer can hold. */
+	private final int MAX_POINTER = 0x3FFF;
+
+	/** Bytes written so far. */
+	private byte[] buf;
+
+	/** Index the next byte is written to. */
+	private int pos;
+
+	/** Number of entries written to each section, questions first. */
+	private int[] counts;
+
+	/** Offset of every name and suffix already written. */
+	private HashMap<DNS_Name, Integer> names;
+
+	/****************************************************************
+	 * Constructor for DNS_Packet_Builder.
+	 ***************************************************************/
+	public DNS_Packet_Builder() {
+		buf = new byte[INITIAL_SIZE];
+		counts = new int[4];
+		names = new HashMap<DNS_Name, Integer>();
+	}
+
+	/****************************************************************
+	 * Clears everything written so the builder can be reused.
+	 *
+	 * @return this builder.
+	 ***************************************************************/
+	public DNS_Packet_Builder reset() {
+		pos = 0;
+		Arrays.fill(counts, 0);
+		names.clear();
+		return this;
+	}
+
+	/****************************************************************
+	 * Writes the header, copying the ID and flags from the first four
+	 * bytes of the given packet. The counts are filled in as
+	 * sections are written.
+	 *
+	 * @param src bytes of the packet to copy the ID and flags from.
+	 ***************************************************************/
+	public void writeHeader(byte[] src) {
+		ensure(DNS_Header.LENGTH);
+		System.arraycopy(src, 0, buf, 0, 4);
+		Arrays.fill(buf, 4, DNS_Header.LENGTH, (byte) 0);
+		pos = DNS_Header.LENGTH;
+	}
+
+	/****************************************************************
+	 * Writes a question.
+	 *
+	 * @param name the name being asked about.
+	 * @param type the QTYPE of the question.
+	 * @param dnsClass the QCLASS of the question.
+	 ***************************************************************/
+	public void writeQuestion(DNS_Name name, int type, int dnsClass) {
+		writeName(name);
+		writeShort(type);
+		writeShort(dnsClass);
+		counts[0]++;
+	}
+
+	/****************************************************************
+	 * Writes a copy of a record read from another packet. Names in
+	 * the RDATA of well known types are decompressed from the source
+	 * packet and compressed again against this one.
+	 *
+	 * @param section ANSWER, AUTHORITY or ADDITIONAL. Sections must
+	 * be written in order.
+	 * @param rr the record to copy.
+	 * @return the index of the record's TTL field in this packet.
+	 ***************************************************************/
+	public int writeRecord(int section, DNS_Answer rr) {
+		writeName(rr.getOwner());
+		writeShort(rr.getType());
+		writeShort(rr.getDNSClass());
+
+		int ttlIndex = pos;
+		writeInt(rr.getTTL());
+
+		int lengthIndex = pos;
+		writeShort(0);
+		int start = pos;
+
+		byte[] src = rr.getBytes();
+		int r = rr.getRDataIndex();
+
+		switch (rr.getType()) {
+		case DNS_Answer.NS_TYPE:
+		case DNS_Answer.CNAME_TYPE:
+		case DNS_Answer.PTR_TYPE:
+			writeName(DNS_Name.read(src, r));
+			break;
+		case DNS_Answer.MX_TYPE:
+			writeBytes(src, r, 2);
+			writeName(DNS_Name.read(src, r + 2));
+			break;
+		case DNS_Answer.SOA_TYPE:
+			int second = DNS_Name.skip(src, r);
+			int rest = DNS_Name.skip(src, second);
+			writeName(DNS_Name.read(src, r));
+			writeName(DNS_Name.read(src, second));
+			writeBytes(src, rest, 20);
+			break;
+		default:
+			writeBytes(src, r, rr.getRDLENGTH());
+		}
+
+		Wire_Format.writeShort(buf, lengthIndex, pos - start);
+		counts[section]++;
+
+		return ttlIndex;
+	}
+
+	/****************************************************************
+	 * Writes a whole packet: its header, questions and every record.
+	 *
+	 * @param packet the packet to write.
+	 * @return the index of the TTL field of every record, apart from
+	 * OPT records whose TTL field holds flags.
+	 ***************************************************************/
+	public int[] writePacket(DNS_Packet packet) {
+		DNS_Header header = packet.getHeader();
+		ArrayList<DNS_Answer> responses = packet.getResponses();
+
+		int numAnswers = header.getANCOUNT();
+		int numAuthority = header.getNSCOUNT();
+		int[] ttlIndexes = new int[responses.size()];
+		int count = 0;
+
+		writeHeader(packet.getBytes());
+
+		for (DNS_Question q : packet.getQuestions()) {
+			writeQuestion(q.getQName(), q.getQTYPE(), q.getQCLASS());
+		}
+
+		for (int i = 0; i < responses.size(); i++) {
+			int section = ADDITIONAL;
+
+			if (i < numAnswers) {
+				section = ANSWER;
+			} else if (i < numAnswers + numAuthority) {
+				section = AUTHORITY;
+			}
+
+			DNS_Answer rr = responses.get(i);
+			int ttlIndex = writeRecord(section, rr);
+
+			if (rr.getType() != DNS_Answer.OPT_TYPE) {
+				ttlIndexes[count++] = ttlIndex;
+			}
+		}
+
+		return Arrays.copyOf(ttlIndexes, count);
+	}
+
+	/****************************************************************
+	 * Writes a name, replacing the longest suffix already written
+	 * with a pointer to it.
+	 *
+	 * @param name the name to write.
+	 ***************************************************************/
+	public void writeName(DNS_Name name) {
+		DNS_Name n = name;
+
+		while (n != null && n.length() > 1) {
+			Integer ptr = names.get(n);
+
+			if (ptr != null) {
+				writeShort(0xC000 | ptr);
+				return;
+			}
+
+			if (pos <= MAX_POINTER) {
+				names.put(n, pos);
+			}
+
+			byte[] wire = n.getWire();
+			writeBytes(wire, 0, wire[0] + 1);
+			n = n.parent();
+		}
+
+		ensure(1);
+		buf[pos++] = 0;
+	}
+
+	/****************************************************************
+	 * Writes a 16-bit value.
+	 ***************************************************************/
+	private void writeShort(int value) {
+		ensure(2);
+		Wire_Format.writeShort(buf, pos, value);
+		pos += 2;
+	}
+
+	/****************************************************************
+	 * Writes a 32-bit value.
+	 ***************************************************************/
+	private void writeInt(int value) {
+		ensure(4);
+		Wire_Format.writeInt(buf, pos, value);
+		pos += 4;
+	}
+
+	/****************************************************************
+	 * Copies bytes into the buffer.
+	 ***************************************************************/
+	private void writeBytes(byte[] src, int off, int len) {
+		ensure(len);
+		System.arraycopy(src, off, buf, pos, len);
+		pos += len;
+	}
+
+	/****************************************************************
+	 * Grows the buffer if it cannot hold the given number of bytes
+	 * past the current position.
+	 ***************************************************************/
+	private void ensure(int needed) {
+		if (pos + needed > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + needed));
+		}
+	}
+
+	/****************************************************************
+	 * @return the number of bytes written.
+	 ***************************************************************/
+	public int getLength() {
+		return pos;
+	}
+
+	/****************************************************************
+	 * Fills in the header counts and returns a copy of the bytes
+	 * written.
+	 *
+	 * @return bytes of the finished packet.
+	 ***************************************************************/
+	public byte[] toBytes() {
+		for (int i = 0; i < counts.length; i++) {
+			Wire_Format.writeShort(buf, 4 + 2 * i, counts[i]);
+		}
+
+		return Arrays.copyOf(buf, pos);
+	}
+
+	/****************************************************************
+	 * @return the finished packet.
+	 ***************************************************************/
+	public DNS_Packet build() {
+		byte[] data = toBytes();
+		return new DNS_Packet(data, data.length);
+	}
+}
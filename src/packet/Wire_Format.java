@@ -0,0 +1,70 @@
+package packet;
+
+/********************************************************************
+ * Wire Format
+ *
+ * Reads and writes the fixed size fields of a DNS packet directly
+ * from its bytes using shifts and masks.
+ *
+ * @author Jack O'Brien
+ * @author Megan Maher
+ * @author Tyler McCarthy
+ *
+ * @version Oct 7, 2014
+ *******************************************************************/
+public final class Wire_Format {
+
+	private Wire_Format() {
+	}
+
+	/****************************************************************
+	 * Reads an unsigned 16-bit field.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the field.
+	 * @return the value of the field.
+	 ***************************************************************/
+	public static int readShort(byte[] data, int index) {
+		return ((data[index] & 0xFF) << 8) | (data[index + 1] & 0xFF);
+	}
+
+	/****************************************************************
+	 * Reads a 32-bit field.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the field.
+	 * @return the value of the field.
+	 ***************************************************************/
+	public static int readInt(byte[] data, int index) {
+		return ((data[index] & 0xFF) << 24) |
+				((data[index + 1] & 0xFF) << 16) |
+				((data[index + 2] & 0xFF) << 8) |
+				(data[index + 3] & 0xFF);
+	}
+
+	/****************************************************************
+	 * Writes a 16-bit field.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the field.
+	 * @param value the value to write.
+	 ***************************************************************/
+	public static void writeShort(byte[] data, int index, int value) {
+		data[index] = (byte) (value >> 8);
+		data[index + 1] = (byte) value;
+	}
+
+	/****************************************************************
+	 * Writes a 32-bit field.
+	 *
+	 * @param data bytes of the packet.
+	 * @param index index of the first byte of the field.
+	 * @param value the value to write.
+	 ***************************************************************/
+	public static void writeInt(byte[] data, int index, int value) {
+		data[index] = (byte) (value >> 24);
+		data[index + 1] = (byte) (value >> 16);
+		data[index + 2] = (byte) (value >> 8);
+		data[index + 3] = (byte) value;
+	}
+}